@@ -0,0 +1,78 @@
+package utils;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vektorové (SIMD) varianty bodových filtrů nad Vector API. Leží ve zvláštní složce src-vector, která se překládá
+ * s --add-modules jdk.incubator.vector, zbytek aplikace se tak přeloží i bez modulu. PixelKernels třídu načítá
+ * reflexí, jen když je modul k dispozici. Výsledky jsou bitově shodné se skalární cestou.
+ * @author Adam Petříček
+ */
+final class SimdKernels implements VectorKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    SimdKernels() {}
+
+    @Override
+    public void invert(int[] data, int from, int to)
+    {
+        int i = from;
+        for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length())
+        {
+            IntVector.fromArray(INTS, data, i)
+                    .lanewise(VectorOperators.XOR, 0x00FFFFFF)
+                    .lanewise(VectorOperators.OR, 0xFF000000)
+                    .intoArray(data, i);
+        }
+        for (; i < to; i++)
+        {
+            data[i] = PixelKernels.INVERT.apply(data[i]);
+        }
+    }
+
+    /**
+     * Dělení třemi je nahrazeno násobením a posunem, které je pro součty 0 - 765 přesné
+     */
+    @Override
+    public void grey(int[] data, int from, int to)
+    {
+        int i = from;
+        for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length())
+        {
+            IntVector argb = IntVector.fromArray(INTS, data, i);
+            IntVector sum = argb.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                    .add(argb.lanewise(VectorOperators.LSHR, 8).and(0xFF))
+                    .add(argb.and(0xFF));
+            IntVector grey = sum.mul(PixelKernels.DIVIDE_BY_3_MULTIPLIER).lanewise(VectorOperators.LSHR, PixelKernels.DIVIDE_BY_3_SHIFT);
+            grey.lanewise(VectorOperators.LSHL, 16)
+                    .or(grey.lanewise(VectorOperators.LSHL, 8))
+                    .or(grey)
+                    .or(0xFF000000)
+                    .intoArray(data, i);
+        }
+        for (; i < to; i++)
+        {
+            data[i] = PixelKernels.GREY.apply(data[i]);
+        }
+    }
+
+    @Override
+    public void invert(byte[] data, int from, int to)
+    {
+        int i = from;
+        for (int bound = from + BYTES.loopBound(to - from); i < bound; i += BYTES.length())
+        {
+            ByteVector.fromArray(BYTES, data, i)
+                    .not()
+                    .intoArray(data, i);
+        }
+        for (; i < to; i++)
+        {
+            data[i] = (byte) ~data[i];
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package app;
+
+import utils.ColorHistogram;
+import utils.ImageStatistics;
+import utils.MetadataTag;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trvalá paměť výsledků analýzy obrázků (histogram barev, statistiky pixelů a seznam metadat) ve složce .cache/analysis,
+ * před kterou je ještě omezená paměť v RAM. Klíčem pixelových výsledků je SHA-256 obsahu souboru: změněný soubor dostane
+ * nový klíč a výsledky se spočítají znovu, kopie stejného obrázku naopak sdílí jeden výsledek. Metadata mají klíč z cesty,
+ * velikosti a času změny, aby se kvůli nim nečetl celý soubor. Otisk se pro každou cestu pamatuje spolu
+ * s velikostí a časem změny v RAM i ve složce (položka .fingerprint), nezměněný soubor se tedy čte jen poprvé, a to
+ * i napříč spuštěními aplikace. Celý histogram se ukládá jen do MAX_STORED_COLORS
+ * různých barev, statistiky a metadata vždy. Velikost složky je omezená, viz DiskCacheDirectory.
+ * @author Adam Petříček
+ */
+public final class AnalysisCache {
+    private static final int MAGIC = 0x41524132;
+    private static final int MAX_STORED_COLORS = 1 << 20;
+    private static final int HASH_BUFFER_BYTES = 1 << 20;
+    private static final String HISTOGRAM = ".histogram";
+    private static final String STATISTICS = ".statistics";
+    private static final String METADATA = ".metadata";
+    private static final String FINGERPRINT = ".fingerprint";
+    private static final String ENTRIES = "*.{histogram,statistics,metadata,fingerprint}";
+    private static final int HASH_BYTES = 32;
+
+    private static final AnalysisCache shared = new AnalysisCache(Path.of(".cache", "analysis"), defaultBudget(),
+            Runtime.getRuntime().maxMemory() / 16);
+
+    private final DiskCacheDirectory directory;
+    private final long memoryBudgetBytes;
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Remembered> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Výpočet výsledku, který v paměti chybí
+     * @param <T> typ výsledku
+     * @param <E> další výjimka, kterou výpočet může vyhodit
+     */
+    @FunctionalInterface
+    public interface Computation<T, E extends Exception>
+    {
+        T compute() throws IOException, E;
+    }
+
+    /**
+     * Převod výsledku na bajty a zpět, encode vrací null, pokud se výsledek nemá ukládat
+     */
+    private interface Codec<T>
+    {
+        ByteBuffer encode(T value);
+
+        T decode(ByteBuffer buffer);
+
+        long weight(T value);
+    }
+
+    private record Fingerprint(long size, long modified, String hash)
+    {
+    }
+
+    private record Remembered(Object value, long weight)
+    {
+    }
+
+    private static final Codec<ColorHistogram> HISTOGRAM_CODEC = new Codec<>()
+    {
+        @Override
+        public ByteBuffer encode(ColorHistogram histogram)
+        {
+            int distinct = histogram.getDistinctColors();
+            if (distinct > MAX_STORED_COLORS)
+            {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 12 * distinct).putInt(distinct);
+            histogram.forEach((rgb, count) -> buffer.putInt(rgb).putLong(count));
+            return buffer.flip();
+        }
+
+        @Override
+        public ColorHistogram decode(ByteBuffer buffer)
+        {
+            int distinct = buffer.getInt();
+            if (distinct < 0 || buffer.remaining() != 12L * distinct)
+            {
+                throw new IllegalStateException("Corrupted histogram");
+            }
+            ColorHistogram histogram = new ColorHistogram();
+            for (int i = 0; i < distinct; i++)
+            {
+                histogram.add(buffer.getInt(), buffer.getLong());
+            }
+            return histogram;
+        }
+
+        @Override
+        public long weight(ColorHistogram histogram)
+        {
+            int distinct = histogram.getDistinctColors();
+            // řídký histogram zabírá zhruba tabulku int a tabulku long s poloviční zaplněností
+            return distinct > MAX_STORED_COLORS ? Long.MAX_VALUE : 24L * distinct + 64;
+        }
+    };
+
+    private static final Codec<ImageStatistics> STATISTICS_CODEC = new Codec<>()
+    {
+        @Override
+        public ByteBuffer encode(ImageStatistics statistics)
+        {
+            long[] top = statistics.getTop();
+            ByteBuffer buffer = ByteBuffer.allocate(20 + 8 * top.length)
+                    .putLong(statistics.getTotalPixels())
+                    .putInt(statistics.getDistinctColors())
+                    .putInt(statistics.getMeanColor())
+                    .putInt(top.length);
+            for (long entry : top)
+            {
+                buffer.putLong(entry);
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public ImageStatistics decode(ByteBuffer buffer)
+        {
+            long total = buffer.getLong();
+            int distinct = buffer.getInt();
+            int mean = buffer.getInt();
+            long[] top = new long[buffer.getInt()];
+            for (int i = 0; i < top.length; i++)
+            {
+                top[i] = buffer.getLong();
+            }
+            return new ImageStatistics(total, distinct, mean, top);
+        }
+
+        @Override
+        public long weight(ImageStatistics statistics)
+        {
+            return 64 + 8L * ColorHistogram.TOP_COLORS;
+        }
+    };
+
+    private static final Codec<List<MetadataTag>> METADATA_CODEC = new Codec<>()
+    {
+        @Override
+        public ByteBuffer encode(List<MetadataTag> tags)
+        {
+            List<byte[]> encoded = new ArrayList<>(3 * tags.size());
+            int bytes = 4;
+            for (MetadataTag tag : tags)
+            {
+                for (String field : new String[] { tag.getDirectory(), tag.getName(), tag.getDescription() })
+                {
+                    byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+                    encoded.add(utf8);
+                    bytes += 4 + utf8.length;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(bytes).putInt(tags.size());
+            for (byte[] utf8 : encoded)
+            {
+                buffer.putInt(utf8.length).put(utf8);
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public List<MetadataTag> decode(ByteBuffer buffer)
+        {
+            int count = buffer.getInt();
+            List<MetadataTag> tags = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++)
+            {
+                tags.add(new MetadataTag(readString(buffer), readString(buffer), readString(buffer)));
+            }
+            if (buffer.hasRemaining())
+            {
+                throw new IllegalStateException("Corrupted metadata");
+            }
+            return List.copyOf(tags);
+        }
+
+        private String readString(ByteBuffer buffer)
+        {
+            byte[] utf8 = new byte[buffer.getInt()];
+            buffer.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long weight(List<MetadataTag> tags)
+        {
+            long weight = 64;
+            for (MetadataTag tag : tags)
+            {
+                weight += 128 + 2L * (tag.getDirectory().length() + tag.getName().length() + tag.getDescription().length());
+            }
+            return weight;
+        }
+    };
+
+    /**
+     * Konstruktor
+     * @param directory složka s uloženými výsledky
+     * @param budgetBytes maximální velikost složky v bajtech, 0 paměť vypíná
+     * @param memoryBudgetBytes kolik bajtů výsledků se drží v RAM
+     */
+    public AnalysisCache(Path directory, long budgetBytes, long memoryBudgetBytes)
+    {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.directory = new DiskCacheDirectory(directory, ENTRIES, budgetBytes);
+    }
+
+    /**
+     * Vrací sdílenou instanci ve složce .cache/analysis
+     * @return AnalysisCache
+     */
+    public static AnalysisCache getShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Výchozí limit je 256 MiB, lze ho přepsat vlastností analyzator.analysisCacheMB (0 paměť vypne)
+     * @return long
+     */
+    private static long defaultBudget()
+    {
+        return Long.getLong("analyzator.analysisCacheMB", 256) * 1024 * 1024;
+    }
+
+    /**
+     * Vrací histogram barev obrázku, pokud není uložený, spočítá ho a uloží. Vrácený histogram je sdílený a nesmí se měnit
+     * @param source soubor obrázku
+     * @param computation výpočet histogramu
+     * @return ColorHistogram
+     * @throws IOException
+     */
+    public <E extends Exception> ColorHistogram getHistogram(File source, Computation<ColorHistogram, E> computation) throws IOException, E
+    {
+        return get(source, this::contentHash, HISTOGRAM, HISTOGRAM_CODEC, computation);
+    }
+
+    /**
+     * Vrací statistiky pixelů obrázku, pokud nejsou uložené, spočítají se z histogramu (ten se případně také spočítá a uloží)
+     * @param source soubor obrázku
+     * @param computation výpočet histogramu
+     * @return ImageStatistics
+     * @throws IOException
+     */
+    public <E extends Exception> ImageStatistics getStatistics(File source, Computation<ColorHistogram, E> computation) throws IOException, E
+    {
+        return get(source, this::contentHash, STATISTICS, STATISTICS_CODEC, () -> ImageStatistics.of(getHistogram(source, computation)));
+    }
+
+    /**
+     * Vrací seznam tagů metadat obrázku, pokud není uložený, přečte ho a uloží. Klíčem je cesta, velikost a čas změny
+     * souboru, ne otisk obsahu: metadata se čtou jen z hlaviček a kvůli nim se nesmí číst a hashovat celý soubor
+     * @param source soubor obrázku
+     * @param computation čtení metadat
+     * @return List<MetadataTag>
+     * @throws IOException
+     */
+    public <E extends Exception> List<MetadataTag> getMetadata(File source, Computation<List<MetadataTag>, E> computation) throws IOException, E
+    {
+        return get(source, AnalysisCache::fileKey, METADATA, METADATA_CODEC, () -> List.copyOf(computation.compute()));
+    }
+
+    /**
+     * Klíč položky odvozený ze souboru
+     */
+    @FunctionalInterface
+    private interface KeyFunction
+    {
+        String keyOf(File source) throws IOException;
+    }
+
+    /**
+     * Klíč podle cesty, velikosti a času změny souboru (UUID), bez čtení obsahu
+     */
+    private static String fileKey(File source)
+    {
+        String key = source.getAbsolutePath() + '|' + source.length() + '|' + source.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, E extends Exception> T get(File source, KeyFunction keyFunction, String suffix, Codec<T> codec,
+            Computation<T, E> computation) throws IOException, E
+    {
+        if (getBudget() == 0)
+        {
+            return computation.compute();
+        }
+        long size = source.length();
+        long modified = source.lastModified();
+        String key = keyFunction.keyOf(source) + suffix;
+        synchronized (this)
+        {
+            Remembered cached = memory.get(key);
+            if (cached != null)
+            {
+                hits++;
+                return (T) cached.value();
+            }
+        }
+        Path entry = directory.resolve(key);
+        T stored = read(entry, codec);
+        if (stored != null)
+        {
+            synchronized (this)
+            {
+                hits++;
+                remember(key, stored, codec.weight(stored));
+            }
+            return stored;
+        }
+        synchronized (this)
+        {
+            misses++;
+        }
+        // výpočet běží mimo zámek, aby se obrázky mohly analyzovat paralelně
+        T computed = computation.compute();
+        if (source.length() != size || source.lastModified() != modified)
+        {
+            // soubor se změnil během výpočtu, výsledek nemusí odpovídat souboru, ze kterého je klíč
+            return computed;
+        }
+        ByteBuffer encoded = codec.encode(computed);
+        if (encoded != null)
+        {
+            write(entry, encoded);
+        }
+        synchronized (this)
+        {
+            remember(key, computed, codec.weight(computed));
+        }
+        return computed;
+    }
+
+    /**
+     * Vrací SHA-256 obsahu souboru jako hex řetězec. Dokud se velikost a čas změny souboru nezmění, vrací zapamatovaný
+     * otisk z RAM nebo z položky .fingerprint, soubor se čte a hashuje jen po změně
+     * @param source soubor
+     * @return String
+     * @throws IOException
+     */
+    public String contentHash(File source) throws IOException
+    {
+        String path = source.getAbsolutePath();
+        long size = source.length();
+        long modified = source.lastModified();
+        Fingerprint known = fingerprints.get(path);
+        if (known != null && known.size() == size && known.modified() == modified)
+        {
+            return known.hash();
+        }
+        Path entry = fingerprintEntry(path);
+        known = readFingerprint(entry, path);
+        if (known == null || known.size() != size || known.modified() != modified)
+        {
+            known = new Fingerprint(size, modified, hash(source));
+            writeFingerprint(entry, path, known);
+        }
+        fingerprints.put(path, known);
+        return known.hash();
+    }
+
+    /**
+     * Spočítá SHA-256 celého obsahu souboru
+     */
+    private static String hash(File source) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_BYTES);
+            while (channel.read(buffer) != -1)
+            {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Jméno položky s otiskem je UUID z absolutní cesty souboru
+     */
+    private Path fingerprintEntry(String path)
+    {
+        return directory.resolve(UUID.nameUUIDFromBytes(path.getBytes(StandardCharsets.UTF_8)) + FINGERPRINT);
+    }
+
+    /**
+     * Přečte uložený otisk, při chybě, poškozené položce nebo jiné cestě (kolize UUID) vrací null
+     */
+    private static Fingerprint readFingerprint(Path entry, String path)
+    {
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(entry));
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC)
+            {
+                DiskCacheDirectory.deleteQuietly(entry);
+                return null;
+            }
+            long size = buffer.getLong();
+            long modified = buffer.getLong();
+            byte[] hash = new byte[HASH_BYTES];
+            buffer.get(hash);
+            byte[] utf8 = new byte[buffer.remaining()];
+            buffer.get(utf8);
+            if (!path.equals(new String(utf8, StandardCharsets.UTF_8)))
+            {
+                return null;
+            }
+            DiskCacheDirectory.touch(entry);
+            return new Fingerprint(size, modified, HexFormat.of().formatHex(hash));
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            DiskCacheDirectory.deleteQuietly(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Uloží otisk: velikost, čas změny, SHA-256 a cestu souboru
+     */
+    private void writeFingerprint(Path entry, String path, Fingerprint fingerprint)
+    {
+        if (getBudget() == 0)
+        {
+            return;
+        }
+        byte[] utf8 = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(16 + HASH_BYTES + utf8.length)
+                .putLong(fingerprint.size())
+                .putLong(fingerprint.modified())
+                .put(HexFormat.of().parseHex(fingerprint.hash()))
+                .put(utf8)
+                .flip();
+        write(entry, encoded);
+    }
+
+    /**
+     * Zapomene otisk souboru v RAM i na disku, při dalším použití se obsah souboru přečte a zahashuje znovu
+     * @param source soubor
+     */
+    public void invalidate(File source)
+    {
+        String path = source.getAbsolutePath();
+        fingerprints.remove(path);
+        DiskCacheDirectory.deleteQuietly(fingerprintEntry(path));
+    }
+
+    /**
+     * Uloží výsledek do RAM a uvolní nejdéle nepoužité výsledky nad limit, příliš velký výsledek se neukládá
+     */
+    private void remember(String key, Object value, long weight)
+    {
+        if (weight > memoryBudgetBytes)
+        {
+            return;
+        }
+        Remembered previous = memory.put(key, new Remembered(value, weight));
+        if (previous != null)
+        {
+            memoryUsedBytes -= previous.weight();
+        }
+        memoryUsedBytes += weight;
+        Iterator<Remembered> iterator = memory.values().iterator();
+        while (memoryUsedBytes > memoryBudgetBytes)
+        {
+            memoryUsedBytes -= iterator.next().weight();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Přečte položku, při chybě nebo poškozené položce vrací null (výsledek se pak spočítá znovu)
+     */
+    private static <T> T read(Path entry, Codec<T> codec)
+    {
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(entry));
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC)
+            {
+                DiskCacheDirectory.deleteQuietly(entry);
+                return null;
+            }
+            T value = codec.decode(buffer);
+            DiskCacheDirectory.touch(entry);
+            return value;
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            DiskCacheDirectory.deleteQuietly(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Uloží výsledek přes dočasný soubor (DiskCacheDirectory.write). Chyba zápisu se ignoruje, výsledek se příště jen
+     * spočítá znovu
+     */
+    private void write(Path entry, ByteBuffer encoded)
+    {
+        directory.write(entry, 4L + encoded.remaining(), channel -> {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC).flip();
+            while (header.hasRemaining() || encoded.hasRemaining())
+            {
+                channel.write(new ByteBuffer[] { header, encoded });
+            }
+        });
+    }
+
+    /**
+     * Smaže všechny uložené výsledky z RAM i z disku a zapomene otisky souborů
+     */
+    public void clear()
+    {
+        synchronized (this)
+        {
+            memory.clear();
+            memoryUsedBytes = 0;
+        }
+        fingerprints.clear();
+        directory.clear();
+    }
+
+    /**
+     * Nastaví limit velikosti složky a případně hned smaže přebývající položky, 0 paměť vypne
+     * @param budgetBytes maximální velikost v bajtech
+     */
+    public void setBudget(long budgetBytes)
+    {
+        directory.setBudget(budgetBytes);
+        if (budgetBytes == 0)
+        {
+            synchronized (this)
+            {
+                memory.clear();
+                memoryUsedBytes = 0;
+            }
+        }
+    }
+
+    public long getBudget()
+    {
+        return directory.getBudget();
+    }
+
+    public synchronized long getMemoryUsedBytes()
+    {
+        return memoryUsedBytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public long getEvictions()
+    {
+        return directory.getEvictions();
+    }
+}
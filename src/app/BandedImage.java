@@ -0,0 +1,232 @@
+package app;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+
+/**
+ * Obrázek rozdělený na vodorovné pásy celé šířky, které se počítají až ve chvíli, kdy si o ně někdo řekne.
+ * V paměti je vždy jen naposledy spočítaný pás. PNG writer čte obrázek po řádcích shora dolů, takže se každý pás
+ * spočítá jen jednou a paměť odpovídá velikosti pásu. JPEG writer si ale bere celý raster najednou (getData()),
+ * u něj se pásy jen složí do jednoho výstupního rasteru.
+ * @author Adam Petříček
+ */
+final class BandedImage implements RenderedImage {
+
+    /**
+     * Zdroj pásů, vrací obrázek s řádky y až y + rows - 1
+     */
+    @FunctionalInterface
+    interface BandSource
+    {
+        BufferedImage read(int y, int rows) throws IOException;
+    }
+
+    private final int width;
+    private final int height;
+    private final int bandHeight;
+    private final BandSource source;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+
+    private int cachedBand = -1;
+    private Raster cachedRaster;
+
+    /**
+     * @param width šířka celého obrázku
+     * @param height výška celého obrázku
+     * @param bandHeight výška jednoho pásu
+     * @param source zdroj pásů
+     * @throws IOException při chybě čtení prvního pásu
+     */
+    BandedImage(int width, int height, int bandHeight, BandSource source) throws IOException
+    {
+        this.width = width;
+        this.height = height;
+        this.bandHeight = Math.max(1, Math.min(bandHeight, height));
+        this.source = source;
+        // typ výstupu určuje první pás, ten se stejně bude zapisovat jako první
+        BufferedImage first = source.read(0, this.bandHeight);
+        this.colorModel = first.getColorModel();
+        this.sampleModel = first.getSampleModel().createCompatibleSampleModel(width, 1);
+        this.cachedBand = 0;
+        this.cachedRaster = first.getRaster();
+    }
+
+    private synchronized Raster band(int index)
+    {
+        if (index != cachedBand)
+        {
+            int y = index * bandHeight;
+            try
+            {
+                cachedRaster = source.read(y, Math.min(bandHeight, height - y)).getRaster().createTranslatedChild(0, y);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            cachedBand = index;
+        }
+        return cachedRaster;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources()
+    {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name)
+    {
+        return java.awt.Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames()
+    {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel()
+    {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel()
+    {
+        return sampleModel;
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public int getMinX()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getMinY()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles()
+    {
+        return (height + bandHeight - 1) / bandHeight;
+    }
+
+    @Override
+    public int getMinTileX()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight()
+    {
+        return bandHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset()
+    {
+        return 0;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY)
+    {
+        return band(tileY);
+    }
+
+    @Override
+    public Raster getData()
+    {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect)
+    {
+        SampleModel model = sampleModel.createCompatibleSampleModel(rect.width, rect.height);
+        WritableRaster result = Raster.createWritableRaster(model, rect.getLocation());
+        return copyData(result);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster)
+    {
+        if (raster == null)
+        {
+            return (WritableRaster) getData();
+        }
+        int left = Math.max(0, raster.getMinX());
+        int right = Math.min(width, raster.getMinX() + raster.getWidth());
+        int top = Math.max(0, raster.getMinY());
+        int bottom = Math.min(height, raster.getMinY() + raster.getHeight());
+        if (left >= right)
+        {
+            return raster;
+        }
+        // po řádcích přes getDataElements, WritableRaster.setRect kopíruje z posunutých podrasterů špatné řádky
+        Object row = null;
+        for (int index = top / bandHeight; index * bandHeight < bottom; index++)
+        {
+            Raster band = band(index);
+            int to = Math.min(bottom, band.getMinY() + band.getHeight());
+            for (int y = Math.max(top, band.getMinY()); y < to; y++)
+            {
+                row = band.getDataElements(left, y, right - left, 1, row);
+                raster.setDataElements(left, y, right - left, 1, row);
+            }
+        }
+        return raster;
+    }
+}
@@ -0,0 +1,370 @@
+package app;
+
+import utils.FilterPipeline;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dávkové použití řetězce filtrů na více obrázků ve třech fázích: čtení a dekódování, filtr, kódování a zápis.
+ * Každá fáze má vlastní vlákna a mezi fázemi jsou fronty s omezenou kapacitou, rychlejší fáze na plné frontě čeká.
+ * Propustnost se tak blíží nejpomalejší fázi, zatímco se jeden obrázek zapisuje, další se už filtruje a další dekóduje.
+ * Paměť hlídá rozpočet v bajtech: obrázek se začne dekódovat, až když se jeho odhad (Image.getEstimatedBytes) vejde
+ * vedle rozpracovaných obrázků, a uvolní se po zápisu. Obrázek větší než celý rozpočet běží sám. Obrázky zpracovávané
+ * po pásech (viz Image.isStreamed) se celé čtou, filtrují i zapisují ve fázi filtru a běží nejvýš jeden najednou.
+ * Obrázky se dekódují od nejdražšího podle odhadu CostScheduleru, filtr velkého obrázku se dělí na pásy, které si
+ * berou i vlákna poolu rozmazání.
+ * @author Adam Petříček
+ */
+final class BatchEngine {
+    /**
+     * Rozpočet paměti se počítá v povoleních semaforu po KB, aby se vešel do int
+     */
+    private static final int BYTES_PER_PERMIT = 1024;
+
+    private final int decodeThreads;
+    private final int filterThreads;
+    private final int encodeThreads;
+    private final int queueCapacity;
+    private final long memoryBudgetBytes;
+
+    /**
+     * Obrázek putující mezi fázemi, pixels je null u obrázku zpracovávaného po pásech, permits je jeho část
+     * rozpočtu paměti
+     */
+    private record Job(Image image, BufferedImage pixels, int permits)
+    {
+    }
+
+    /**
+     * Značka konce fronty, každé vlákno další fáze dostane jednu
+     */
+    private static final Job END = new Job(null, null, 0);
+
+    /**
+     * @param decodeThreads počet vláken čtení a dekódování
+     * @param filterThreads počet vláken filtru
+     * @param encodeThreads počet vláken kódování a zápisu
+     * @param queueCapacity kapacita každé z front mezi fázemi
+     * @param memoryBudgetBytes kolik bajtů haldy smí rozpracované obrázky podle odhadu zabrat
+     */
+    BatchEngine(int decodeThreads, int filterThreads, int encodeThreads, int queueCapacity, long memoryBudgetBytes)
+    {
+        if (decodeThreads < 1 || filterThreads < 1 || encodeThreads < 1 || queueCapacity < 1)
+        {
+            throw new IllegalArgumentException("Thread counts and queue capacity must be positive");
+        }
+        if (memoryBudgetBytes < BYTES_PER_PERMIT)
+        {
+            throw new IllegalArgumentException("Memory budget must be at least " + BYTES_PER_PERMIT + " bytes");
+        }
+        this.decodeThreads = decodeThreads;
+        this.filterThreads = filterThreads;
+        this.encodeThreads = encodeThreads;
+        this.queueCapacity = queueCapacity;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Výchozí nastavení: filtr na všech procesorech, čtení a zápis na polovině, fronty na dva obrázky, rozpracované
+     * obrázky nejvýš na polovinu haldy (čtvrtinu má PixelCache). Lze přepsat vlastnostmi analyzator.decodeThreads,
+     * analyzator.filterThreads, analyzator.encodeThreads, analyzator.batchQueue a analyzator.batchMemoryMB
+     * @return BatchEngine
+     */
+    static BatchEngine withDefaults()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int half = Math.max(1, processors / 2);
+        long memoryMB = Long.getLong("analyzator.batchMemoryMB", Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024));
+        return new BatchEngine(Integer.getInteger("analyzator.decodeThreads", half),
+                Integer.getInteger("analyzator.filterThreads", processors),
+                Integer.getInteger("analyzator.encodeThreads", half),
+                Integer.getInteger("analyzator.batchQueue", 2),
+                Math.max(1, memoryMB) * 1024 * 1024);
+    }
+
+    /**
+     * Vrací, kolik povolení rozpočtu paměti obrázek potřebuje, nejvýš celý rozpočet
+     */
+    private static int permitsFor(long bytes, int totalPermits)
+    {
+        return (int) Math.max(1, Math.min(totalPermits, (bytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT));
+    }
+
+    /**
+     * Použije řetězec filtrů na kopie všech obrázků a výsledky uloží, od nejdražšího obrázku. Po první chybě se další obrázky už nezpracovávají,
+     * rozpracované se dokončí a chyba se vyhodí dál
+     * @param images obrázky
+     * @param pipeline řetězec filtrů
+     * @throws IOException
+     */
+    void run(List<Image> images, FilterPipeline pipeline) throws IOException
+    {
+        if (pipeline.isEmpty())
+        {
+            throw new IllegalArgumentException("Filter chain is empty");
+        }
+        // obrázky zpracovávané po pásech se ve fázi filtru i dekódují a kódují, jsou tedy na pixel dražší
+        double costPerPixel = pipeline.getCostPerPixel();
+        List<Image> ordered = CostScheduler.largestFirst(images, image -> CostScheduler.estimateCost(image,
+                image.isStreamed() ? costPerPixel + CostScheduler.CODEC_COST : costPerPixel));
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> filtered = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        int totalPermits = (int) Math.min(Integer.MAX_VALUE, memoryBudgetBytes / BYTES_PER_PERMIT);
+        Semaphore memory = new Semaphore(totalPermits);
+        // obrázek po pásech drží pás i s okraji na každém vlákně, které si jeho pásy vezme, běží proto jen jeden
+        Semaphore streamed = new Semaphore(1);
+
+        AtomicInteger decoding = new AtomicInteger(decodeThreads);
+        for (int i = 0; i < decodeThreads; i++)
+        {
+            threads.add(start("batch-decode-" + (i + 1), () -> {
+                try
+                {
+                    for (int index = next.getAndIncrement(); index < ordered.size() && failure.get() == null;
+                            index = next.getAndIncrement())
+                    {
+                        Image image = ordered.get(index);
+                        boolean isStreamed;
+                        int permits;
+                        try
+                        {
+                            isStreamed = image.isStreamed();
+                            permits = permitsFor(image.getEstimatedBytes(pipeline), totalPermits);
+                        }
+                        catch (Throwable ex)
+                        {
+                            failure.compareAndSet(null, ex);
+                            continue;
+                        }
+                        if (isStreamed)
+                        {
+                            streamed.acquire();
+                        }
+                        boolean admitted = false;
+                        try
+                        {
+                            memory.acquire(permits);
+                            admitted = true;
+                        }
+                        finally
+                        {
+                            if (!admitted && isStreamed)
+                            {
+                                streamed.release();
+                            }
+                        }
+                        Job job;
+                        try
+                        {
+                            job = new Job(image, isStreamed ? null : image.readForFilter(), permits);
+                        }
+                        catch (Throwable ex)
+                        {
+                            failure.compareAndSet(null, ex);
+                            release(permits, isStreamed, memory, streamed);
+                            continue;
+                        }
+                        decoded.put(job);
+                    }
+                }
+                finally
+                {
+                    finishStage(decoding, decoded, filterThreads);
+                }
+            }, failure));
+        }
+
+        AtomicInteger filtering = new AtomicInteger(filterThreads);
+        for (int i = 0; i < filterThreads; i++)
+        {
+            threads.add(start("batch-filter-" + (i + 1), () -> {
+                try
+                {
+                    for (Job job = decoded.take(); job != END; job = decoded.take())
+                    {
+                        if (failure.get() != null)
+                        {
+                            release(job.permits(), job.pixels() == null, memory, streamed);
+                            continue;
+                        }
+                        try
+                        {
+                            if (job.pixels() == null)
+                            {
+                                try
+                                {
+                                    job.image().copyAndApplyStreamed(pipeline);
+                                }
+                                finally
+                                {
+                                    release(job.permits(), true, memory, streamed);
+                                }
+                                continue;
+                            }
+                            pipeline.apply(job.pixels());
+                        }
+                        catch (Throwable ex)
+                        {
+                            failure.compareAndSet(null, ex);
+                            if (job.pixels() != null)
+                            {
+                                release(job.permits(), false, memory, streamed);
+                            }
+                            continue;
+                        }
+                        filtered.put(job);
+                    }
+                }
+                finally
+                {
+                    finishStage(filtering, filtered, encodeThreads);
+                }
+            }, failure));
+        }
+
+        for (int i = 0; i < encodeThreads; i++)
+        {
+            threads.add(start("batch-encode-" + (i + 1), () -> {
+                for (Job job = filtered.take(); job != END; job = filtered.take())
+                {
+                    try
+                    {
+                        if (failure.get() == null)
+                        {
+                            job.image().writeFiltered(pipeline, job.pixels());
+                        }
+                    }
+                    catch (Throwable ex)
+                    {
+                        failure.compareAndSet(null, ex);
+                    }
+                    finally
+                    {
+                        release(job.permits(), false, memory, streamed);
+                    }
+                }
+            }, failure));
+        }
+
+        join(threads);
+        rethrow(failure.get());
+    }
+
+    /**
+     * Práce jednoho vlákna fáze, čekání na frontu může být přerušeno
+     */
+    @FunctionalInterface
+    private interface Worker
+    {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread start(String name, Worker worker, AtomicReference<Throwable> failure)
+    {
+        Thread thread = new Thread(() -> {
+            try
+            {
+                worker.run();
+            }
+            catch (InterruptedException ex)
+            {
+                failure.compareAndSet(null, new InterruptedIOException("Interrupted while processing images"));
+            }
+            catch (RuntimeException | Error ex)
+            {
+                // chyba mimo zpracování jednoho obrázku nesmí vlákno ukončit potichu, run() ji vyhodí dál
+                failure.compareAndSet(null, ex);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Vrátí část rozpočtu paměti zpracovaného nebo přeskočeného obrázku, u obrázku po pásech i jeho místo
+     */
+    private static void release(int permits, boolean isStreamed, Semaphore memory, Semaphore streamed)
+    {
+        memory.release(permits);
+        if (isStreamed)
+        {
+            streamed.release();
+        }
+    }
+
+    /**
+     * Poslední vlákno fáze pošle každému vláknu další fáze značku konce
+     */
+    private static void finishStage(AtomicInteger running, BlockingQueue<Job> queue, int consumers) throws InterruptedException
+    {
+        if (running.decrementAndGet() == 0)
+        {
+            for (int i = 0; i < consumers; i++)
+            {
+                queue.put(END);
+            }
+        }
+    }
+
+    /**
+     * Počká na všechna vlákna, při přerušení čekajícího vlákna přeruší i je
+     */
+    private static void join(List<Thread> threads) throws InterruptedIOException
+    {
+        try
+        {
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            for (Thread thread : threads)
+            {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing images");
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException
+    {
+        if (failure == null)
+        {
+            return;
+        }
+        if (failure instanceof UncheckedIOException unchecked)
+        {
+            throw unchecked.getCause();
+        }
+        if (failure instanceof IOException ioException)
+        {
+            throw ioException;
+        }
+        if (failure instanceof RuntimeException runtimeException)
+        {
+            throw runtimeException;
+        }
+        if (failure instanceof Error error)
+        {
+            throw error;
+        }
+        throw new IOException(failure);
+    }
+}
@@ -0,0 +1,46 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Plánování operací nad celou kolekcí podle odhadnuté ceny obrázků (počet pixelů * cena operace na pixel).
+ * Obrázky se spouští od nejdražšího, aby na konci dávky nezůstal jeden velký obrázek na jediném vlákně, zatímco
+ * ostatní už nemají co dělat. Velké obrázky se navíc při výpočtu dělí na pásy, které si berou volná vlákna
+ * (viz utils.RowBands a GaussianBlur), na konec tak zbývají malé obrázky, které se mezi vlákna rozloží rovnoměrně.
+ * @author Adam Petříček
+ */
+final class CostScheduler {
+    /**
+     * Přibližná cena dekódování a zakódování jednoho pixelu, jednotkou je jedna bodová operace
+     */
+    static final double CODEC_COST = 8;
+
+    private CostScheduler() {}
+
+    /**
+     * Odhadne cenu operace nad obrázkem
+     * @param image obrázek
+     * @param costPerPixel cena operace na pixel
+     * @return double
+     */
+    static double estimateCost(Image image, double costPerPixel)
+    {
+        return image.getTotalPixels() * costPerPixel;
+    }
+
+    /**
+     * Vrací obrázky seřazené od nejdražšího, obrázky se stejnou cenou zůstávají v původním pořadí
+     * @param images obrázky
+     * @param cost odhad ceny obrázku
+     * @return List<Image>
+     */
+    static List<Image> largestFirst(List<Image> images, ToDoubleFunction<Image> cost)
+    {
+        List<Image> ordered = new ArrayList<>(images);
+        ordered.sort(Comparator.comparingDouble(cost).reversed());
+        return ordered;
+    }
+}
@@ -0,0 +1,263 @@
+package app;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Složka s položkami trvalé paměti (RasterDiskCache, AnalysisCache) s omezenou velikostí. Položky se zapisují přes
+ * dočasný soubor, který se na místo položky přesune až celý zapsaný, čas změny položky slouží jako čas posledního
+ * použití. Velikost složky se počítá průběžně ze zápisů, celá složka se prochází jen poprvé a při překročení limitu,
+ * kdy se mažou nejdéle nepoužité položky až na 90 % limitu (rezerva, aby se plná složka neprocházela při každém zápisu)
+ * @author Adam Petříček
+ */
+final class DiskCacheDirectory {
+    private final Path directory;
+    private final String glob;
+    private long budgetBytes;
+    /**
+     * Velikost složky podle posledního průchodu a zápisů od něj, -1 = zatím neznámá
+     */
+    private long usedBytes = -1;
+    private long evictions;
+
+    /**
+     * Zápis obsahu položky do otevřeného dočasného souboru
+     */
+    @FunctionalInterface
+    interface Content
+    {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Konstruktor
+     * @param directory složka s položkami
+     * @param glob vzor jmen položek, jiné soubory ve složce se nepočítají ani nemažou
+     * @param budgetBytes maximální velikost položek v bajtech, 0 paměť vypíná
+     */
+    DiskCacheDirectory(Path directory, String glob, long budgetBytes)
+    {
+        this.directory = directory;
+        this.glob = glob;
+        setBudget(budgetBytes);
+    }
+
+    /**
+     * Vrací cestu k položce daného jména
+     * @param name jméno položky
+     * @return Path
+     */
+    Path resolve(String name)
+    {
+        return directory.resolve(name);
+    }
+
+    /**
+     * Zapíše položku přes dočasný soubor a započte ji do velikosti složky. Chyba zápisu se ignoruje, paměť na disku
+     * je jen zrychlení
+     * @param entry položka
+     * @param bytes velikost položky
+     * @param content zápis obsahu
+     * @return boolean, zda se položka zapsala
+     */
+    boolean write(Path entry, long bytes, Content content)
+    {
+        if (bytes > getBudget())
+        {
+            return false;
+        }
+        Path temporary = null;
+        try
+        {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, "write", ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                content.writeTo(channel);
+            }
+            try
+            {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            added(bytes);
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+        finally
+        {
+            if (temporary != null)
+            {
+                deleteQuietly(temporary);
+            }
+        }
+    }
+
+    /**
+     * Označí položku jako právě použitou
+     * @param entry položka
+     * @throws IOException
+     */
+    static void touch(Path entry) throws IOException
+    {
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Smaže soubor, chybu ignoruje
+     * @param file soubor
+     * @return boolean, zda se soubor smazal
+     */
+    static boolean deleteQuietly(Path file)
+    {
+        try
+        {
+            return Files.deleteIfExists(file);
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Započte zapsanou položku do velikosti složky, při překročení limitu maže
+     */
+    private synchronized void added(long bytes) throws IOException
+    {
+        if (usedBytes >= 0)
+        {
+            usedBytes += bytes;
+            if (usedBytes <= budgetBytes)
+            {
+                return;
+            }
+        }
+        evictOverBudget();
+    }
+
+    /**
+     * Projde složku, zapamatuje si její velikost, a pokud přesahuje limit, maže nejdéle nepoužité položky, dokud
+     * neklesne na 90 % limitu
+     */
+    private synchronized void evictOverBudget() throws IOException
+    {
+        List<Path> entries = new ArrayList<>();
+        long used = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob))
+        {
+            for (Path entry : stream)
+            {
+                entries.add(entry);
+                used += Files.size(entry);
+            }
+        }
+        usedBytes = used;
+        if (used <= budgetBytes)
+        {
+            return;
+        }
+        long target = budgetBytes - budgetBytes / 10;
+        entries.sort(Comparator.comparing(DiskCacheDirectory::lastUsed));
+        for (Path entry : entries)
+        {
+            if (used <= target)
+            {
+                break;
+            }
+            long size = Files.size(entry);
+            if (deleteQuietly(entry))
+            {
+                used -= size;
+                evictions++;
+            }
+        }
+        usedBytes = used;
+    }
+
+    private static FileTime lastUsed(Path entry)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(entry);
+        }
+        catch (IOException ex)
+        {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Smaže všechny položky
+     */
+    synchronized void clear()
+    {
+        usedBytes = -1;
+        if (!Files.isDirectory(directory))
+        {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob))
+        {
+            for (Path entry : stream)
+            {
+                deleteQuietly(entry);
+            }
+        }
+        catch (IOException ex)
+        {
+            // co nejde smazat, vypadne při dalším překročení limitu
+        }
+    }
+
+    /**
+     * Nastaví limit velikosti složky a případně hned smaže přebývající položky, 0 paměť vypne
+     * @param budgetBytes maximální velikost v bajtech
+     */
+    synchronized void setBudget(long budgetBytes)
+    {
+        if (budgetBytes < 0)
+        {
+            throw new IllegalArgumentException("Budget must not be negative");
+        }
+        this.budgetBytes = budgetBytes;
+        if (Files.isDirectory(directory))
+        {
+            try
+            {
+                evictOverBudget();
+            }
+            catch (IOException ex)
+            {
+                // limit se znovu uplatní při dalším zápisu
+            }
+        }
+    }
+
+    synchronized long getBudget()
+    {
+        return budgetBytes;
+    }
+
+    synchronized long getEvictions()
+    {
+        return evictions;
+    }
+}
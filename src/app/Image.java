@@ -5,16 +5,35 @@ import com.drew.imaging.ImageProcessingException;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
-import utils.GaussianBlurService;
+import com.drew.metadata.file.FileSystemDirectory;
+import com.drew.metadata.file.FileSystemMetadataReader;
+import utils.ColorEstimate;
+import utils.ColorHistogram;
+import utils.EdgeOperator;
+import utils.FilterPipeline;
+import utils.GaussianBlur;
 import utils.IPatternImage;
+import utils.ImageStatistics;
+import utils.MetadataFormat;
+import utils.MetadataTag;
+import utils.OffHeapRaster;
+import utils.PixelAccess;
+import utils.PixelStorage;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import static utils.Helpers.cloneBufferedImage;
 
@@ -23,10 +42,32 @@ import static utils.Helpers.cloneBufferedImage;
  * @author Adam Petříček
  */
 public class Image implements IPatternImage {
+    /**
+     * Odhad bajtů paměti na pixel při zpracování celého obrázku (dekódovaný obrázek, kopie a float roviny rozmazání)
+     */
+    private static final int BYTES_PER_PIXEL = 32;
+    /**
+     * Obrázky s více pixely se zpracovávají po pásech, lze nastavit vlastností analyzator.tiledPixels
+     */
+    private static final long TILED_PIXELS = Math.min(Integer.MAX_VALUE,
+            Long.getLong("analyzator.tiledPixels", Runtime.getRuntime().maxMemory() / BYTES_PER_PIXEL));
+    /**
+     * Počet pixelů jednoho pásu bez okrajů
+     */
+    private static final long BAND_PIXELS = Math.max(1, TILED_PIXELS / 4);
+
+    private static volatile PixelStorage pixelStorage = defaultPixelStorage();
+
     private String path;
     private String extension;
     private String name;
-    BufferedImage bufferedImageInstance;
+    private String formatName;
+    private int width;
+    private int height;
+    private long fileSize;
+    private long fileModified;
+    private LocalTime loaded;
+    private OffHeapRaster offHeap;
 
     /**
      * Vrátí jméno obrázku
@@ -47,27 +88,256 @@ public class Image implements IPatternImage {
     }
 
     /**
-     * Konstruktor
+     * Vrátí název formátu zjištěný z hlavičky souboru
+     * @return String
+     */
+    public String getFormatName()
+    {
+        return this.formatName;
+    }
+
+    /**
+     * Vrátí šířku obrázku
+     * @return int
+     */
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    /**
+     * Vrátí výšku obrázku
+     * @return int
+     */
+    public int getHeight()
+    {
+        return this.height;
+    }
+
+    /**
+     * Konstruktor, z hlavičky souboru čte pouze rozměry a formát, pixely se dekódují až při prvním použití
      * @param fileInstance instance daného souboru
      */
     public Image(File fileInstance)
     {
         this.path = fileInstance.getAbsolutePath();
         this.name = fileInstance.getName();
+        // velikost a čas změny se berou před čtením hlavičky, soubor změněný během načítání se tak příště načte znovu
+        this.fileSize = fileInstance.length();
+        this.fileModified = fileInstance.lastModified();
+        this.loaded = LocalTime.now();
         String[] split = this.name.split("\\.");
         this.extension = split[split.length-1];
         try
         {
-            this.bufferedImageInstance = ImageIO.read(fileInstance);
+            withReader(reader -> {
+                this.formatName = reader.getFormatName();
+                this.width = reader.getWidth(0);
+                this.height = reader.getHeight(0);
+                return null;
+            });
         }
         catch (IOException ex)
         {
-            System.err.println(ex.getMessage());
-            ex.printStackTrace();
-            throw new IllegalArgumentException("Wrong image");
+            throw new IllegalArgumentException("Wrong image: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Akce prováděná nad otevřeným ImageReaderem
+     */
+    @FunctionalInterface
+    private interface ReaderAction<T>
+    {
+        T apply(ImageReader reader) throws IOException;
+    }
+
+    /**
+     * Otevře soubor obrázku v ImageReaderu, provede nad ním akci a reader zase uvolní
+     * @param action akce nad readerem
+     * @return T
+     * @throws IOException
+     */
+    private <T> T withReader(ReaderAction<T> action) throws IOException
+    {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(path)))
+        {
+            Iterator<ImageReader> readers = input == null ? Collections.emptyIterator() : ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+            {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(input, true, true);
+                return action.apply(reader);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Vrací čas, kdy byl obrázek načten
+     * @return String
+     */
+    public String getChanged()
+    {
+        return DateTimeFormatter.ofPattern("HH:mm:ss").format(loaded);
+    }
+
+    /**
+     * Vrací, zda soubor od načtení obrázku nezměnil velikost ani čas změny
+     * @param file soubor obrázku
+     * @return boolean
+     */
+    public boolean isUpToDate(File file)
+    {
+        return file.length() == fileSize && file.lastModified() == fileModified;
+    }
+
+    /**
+     * Vrátí absolutní cestu k souboru obrázku
+     * @return String
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * Výchozí uložení pixelů z vlastnosti analyzator.pixelStorage (heap, direct, mapped)
+     * @return PixelStorage
+     */
+    private static PixelStorage defaultPixelStorage()
+    {
+        try
+        {
+            return PixelStorage.valueOf(System.getProperty("analyzator.pixelStorage", PixelStorage.heap.name()));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return PixelStorage.heap;
+        }
+    }
+
+    /**
+     * Nastaví, kde se drží dekódované pixely obrázků. Platí pro obrázky, které pixely ještě nenačetly
+     * @param storage heap (PixelCache), direct nebo mapped (OffHeapRaster)
+     */
+    public static void setPixelStorage(PixelStorage storage)
+    {
+        pixelStorage = storage;
+    }
+
+    /**
+     * Vrací, kde se drží dekódované pixely obrázků
+     * @return PixelStorage
+     */
+    public static PixelStorage getPixelStorage()
+    {
+        return pixelStorage;
+    }
+
+    /**
+     * Vrací pixely obrázku mimo haldu, při prvním volání obrázek dekóduje (velké obrázky po pásech)
+     * @return OffHeapRaster
+     * @throws IOException
+     */
+    synchronized OffHeapRaster getOffHeapRaster() throws IOException
+    {
+        if (offHeap == null)
+        {
+            PixelStorage storage = pixelStorage == PixelStorage.heap ? PixelStorage.direct : pixelStorage;
+            if (!isTiled())
+            {
+                BufferedImage decoded = decode();
+                offHeap = OffHeapRaster.allocate(width, height, decoded, storage);
+                offHeap.writeBand(0, decoded);
+            }
+            else
+            {
+                offHeap = withReader(reader -> {
+                    OffHeapRaster raster = null;
+                    try
+                    {
+                        int bandHeight = getBandHeight();
+                        for (int y = 0; y < height; y += bandHeight)
+                        {
+                            BufferedImage band = readRows(reader, y, Math.min(bandHeight, height - y));
+                            if (raster == null)
+                            {
+                                raster = OffHeapRaster.allocate(width, height, band, storage);
+                            }
+                            raster.writeBand(y, band);
+                        }
+                        return raster;
+                    }
+                    catch (IOException | RuntimeException ex)
+                    {
+                        if (raster != null)
+                        {
+                            raster.close();
+                        }
+                        throw ex;
+                    }
+                });
+            }
+        }
+        return offHeap;
+    }
+
+    /**
+     * Uvolní dekódované pixely obrázku, z PixelCache i mimo haldu. Při dalším použití se obrázek dekóduje znovu
+     */
+    public synchronized void releasePixels()
+    {
+        PixelCache.getShared().invalidate(path);
+        if (offHeap != null)
+        {
+            offHeap.close();
+            offHeap = null;
         }
     }
 
+    /**
+     * Vrací dekódované pixely obrázku přes sdílenou PixelCache, po uvolnění z paměti se obrázek dekóduje znovu
+     * @return BufferedImage
+     * @throws IOException
+     */
+    BufferedImage getBufferedImage() throws IOException
+    {
+        return PixelCache.getShared().get(path, this::decode);
+    }
+
+    /**
+     * Vrací pixely obrázku z RasterDiskCache, pokud tam nejsou, dekóduje je ze souboru
+     * @return BufferedImage
+     * @throws IOException
+     */
+    private BufferedImage decode() throws IOException
+    {
+        return RasterDiskCache.getShared().get(new File(path), this::decodeFile);
+    }
+
+    /**
+     * Dekóduje pixely obrázku ze souboru
+     * @return BufferedImage
+     * @throws IOException
+     */
+    private BufferedImage decodeFile() throws IOException
+    {
+        BufferedImage decoded = ImageIO.read(new File(path));
+        if (decoded == null)
+        {
+            throw new IOException("Unsupported image format: " + name);
+        }
+        return decoded;
+    }
+
     /**
      *
      * Vrací metadata daného obrázku
@@ -78,19 +348,63 @@ public class Image implements IPatternImage {
     public StringBuilder getMetadata() throws ImageProcessingException, IOException
     {
         StringBuilder returnString = new StringBuilder();
-        Metadata metadata = null;
-        metadata = ImageMetadataReader.readMetadata(new File(path));
-        if (metadata != null)
+        returnString.append(String.format("\n\nMetadata obrázku %s:\n\n", name));
+        for (MetadataTag tag : getMetadataTags())
         {
-            returnString.append(String.format("\n\nMetadata obrázku %s:\n\n", name));
-            for (Directory directory : metadata.getDirectories())
+            returnString.append(String.format("%s\n", tag));
+        }
+        return returnString;
+    }
+
+    /**
+     * Vrací seznam tagů metadat obrázku. Tagy z obsahu souboru se berou z AnalysisCache a soubor se parsuje jen poprvé,
+     * tagy souborového systému (jméno, velikost, čas změny) patří k cestě, ne k obsahu, a čtou se pokaždé znovu
+     * @return List<MetadataTag>
+     * @throws ImageProcessingException
+     * @throws IOException
+     */
+    public List<MetadataTag> getMetadataTags() throws ImageProcessingException, IOException
+    {
+        File file = new File(path);
+        List<MetadataTag> tags = new ArrayList<>(AnalysisCache.getShared().getMetadata(file, this::readContentMetadataTags));
+        Metadata fileSystem = new Metadata();
+        new FileSystemMetadataReader().read(file, fileSystem);
+        addTags(tags, fileSystem, true);
+        return tags;
+    }
+
+    /**
+     * Přečte ze souboru všechny tagy metadat kromě tagů souborového systému
+     * @return List<MetadataTag>
+     * @throws ImageProcessingException
+     * @throws IOException
+     */
+    private List<MetadataTag> readContentMetadataTags() throws ImageProcessingException, IOException
+    {
+        List<MetadataTag> tags = new ArrayList<>();
+        addTags(tags, ImageMetadataReader.readMetadata(new File(path)), false);
+        return tags;
+    }
+
+    /**
+     * Přidá do seznamu tagy ze všech adresářů metadat
+     * @param tags cílový seznam
+     * @param metadata metadata souboru
+     * @param fileSystem zda se mají přidat i tagy souborového systému
+     */
+    private static void addTags(List<MetadataTag> tags, Metadata metadata, boolean fileSystem)
+    {
+        for (Directory directory : metadata.getDirectories())
+        {
+            if (directory instanceof FileSystemDirectory && !fileSystem)
             {
-                for (Tag tag : directory.getTags()) {
-                    returnString.append(String.format("%s\n", tag));
-                }
+                continue;
+            }
+            for (Tag tag : directory.getTags())
+            {
+                tags.add(MetadataTag.of(tag));
             }
         }
-        return returnString;
     }
 
     /**
@@ -99,23 +413,70 @@ public class Image implements IPatternImage {
      * @throws ImageProcessingException
      */
     public void saveMetadata() throws IOException, ImageProcessingException {
-        StringBuilder metadata = getMetadata();
         File result =  new File("img/metadata.txt");
-        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(result))))
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(result), StandardCharsets.UTF_8)))
         {
-            pw.print(metadata);
+            new MetadataWriter(out, MetadataFormat.text).write(this, getMetadataTags());
         }
     }
 
     /**
      * Vrací celkový počet pixelů obrázku
+     * @return long
+     */
+    public long getTotalPixels()
+    {
+        return (long) width * height;
+    }
+
+    /**
+     * Vrací, zda je obrázek tak velký, že se filtry a histogram počítají po pásech místo celého obrázku v paměti
+     * @return boolean
+     */
+    public boolean isTiled()
+    {
+        return getTotalPixels() > TILED_PIXELS;
+    }
+
+    /**
+     * Odhad bajtů haldy potřebných na použití řetězce filtrů: u celého obrázku BYTES_PER_PIXEL na pixel, po pásech na
+     * pixel jednoho pásu i s okraji, navíc dekódovaný obrázek, pokud se před uložením mimo haldu dekóduje celý
+     * @param pipeline řetězec filtrů
+     * @return long
+     */
+    long getEstimatedBytes(FilterPipeline pipeline)
+    {
+        if (!isStreamed())
+        {
+            return getTotalPixels() * BYTES_PER_PIXEL;
+        }
+        long rows = Math.min(height, (long) getBandHeight() + 2L * pipeline.getHalo(height));
+        long bandBytes = rows * width * BYTES_PER_PIXEL;
+        return isTiled() ? bandBytes : Math.max(bandBytes, getTotalPixels() * Integer.BYTES);
+    }
+
+    /**
+     * Vrací výšku pásu pro zpracování po pásech
      * @return int
      */
-    public int getTotalPixels()
+    private int getBandHeight()
+    {
+        return (int) Math.max(1, Math.min(height, BAND_PIXELS / width));
+    }
+
+    /**
+     * Načte z otevřeného readeru jen řádky y až y + rows - 1 (ImageReadParam.setSourceRegion)
+     * @param reader reader s otevřeným souborem
+     * @param y první řádek
+     * @param rows počet řádků
+     * @return BufferedImage
+     * @throws IOException
+     */
+    private BufferedImage readRows(ImageReader reader, int y, int rows) throws IOException
     {
-        int width = bufferedImageInstance.getWidth();
-        int height = bufferedImageInstance.getHeight();
-        return width * height;
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, y, width, rows));
+        return reader.read(0, param);
     }
 
     /**
@@ -124,19 +485,7 @@ public class Image implements IPatternImage {
      */
     public void copyAndInvert() throws IOException
     {
-        BufferedImage copiedImage = cloneBufferedImage(bufferedImageInstance);
-        for (int y = 0; y < copiedImage.getHeight(); y++)
-        {
-            for (int x = 0; x < copiedImage.getWidth(); x++)
-            {
-                Color c = new Color(copiedImage.getRGB(x, y), true);
-                Color newColor = new Color(255-c.getRed(),255-c.getBlue(), 255-c.getGreen());
-                copiedImage.setRGB(x,y,newColor.getRGB());
-            }
-        }
-        String nameNoExtension = name.replaceFirst("[.][^.]+$", "");
-        File outputfile = new File(String.format("img/%s_inverted.%s", nameNoExtension, extension));
-        ImageIO.write(copiedImage, extension, outputfile);
+        copyAndApply(FilterPipeline.empty().invert());
     }
 
     /**
@@ -145,149 +494,377 @@ public class Image implements IPatternImage {
      */
     public void copyAndMakeGrey() throws IOException
     {
-        BufferedImage copiedImage = cloneBufferedImage(bufferedImageInstance);
-        for (int y = 0; y < copiedImage.getHeight(); y++)
-        {
-            for (int x = 0; x < copiedImage.getWidth(); x++)
-            {
-                Color c = new Color(copiedImage.getRGB(x, y), true);
-                int calculatedGrey = (c.getRed() + c.getBlue() + c.getGreen()) / 3;
-                Color newColor = new Color(calculatedGrey,calculatedGrey,calculatedGrey);
-                copiedImage.setRGB(x,y,newColor.getRGB());
-            }
-        }
-        String nameNoExtension = name.replaceFirst("[.][^.]+$", "");
-        File outputfile = new File(String.format("img/%s_grey.%s", nameNoExtension, extension));
-        ImageIO.write(copiedImage, extension, outputfile);
+        copyAndApply(FilterPipeline.empty().grey());
     }
 
     /**
-     * Mění obrázek na rozmazaný a ukládá ho
+     * Mění obrázek na rozmazaný s výchozím poloměrem a ukládá ho
      * @throws IOException
      */
     public void copyAndBlur() throws IOException
     {
-        String nameNoExtension = name.replaceFirst("[.][^.]+$", "");
-        File outFile = new File(String.format("img/%s_blurred.%s", nameNoExtension, extension));
-
-        BufferedImage image = cloneBufferedImage(bufferedImageInstance);
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int numPixels = width * height;
-
-        double[][] pixels = new double[4][numPixels];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                for (int ch = 0; ch < 3; ch++) {
-                    int val = (rgb >>> ((2 - ch) * 8)) & 0xFF;
-                    pixels[ch][y * width + x] = Math.pow(val / 255.0, 2.2);
-                }
-                pixels[3][y * width + x] = 1;
-            }
+        copyAndBlur(GaussianBlur.DEFAULT_RADIUS);
+    }
+
+    /**
+     * Mění obrázek na rozmazaný s daným poloměrem a ukládá ho
+     * @param radius poloměr (směrodatná odchylka) Gaussova rozmazání
+     * @throws IOException
+     */
+    public void copyAndBlur(double radius) throws IOException
+    {
+        copyAndApply(FilterPipeline.empty().blur(radius));
+    }
+
+    /**
+     * Zaostří obrázek a ukládá ho
+     * @throws IOException
+     */
+    public void copyAndSharpen() throws IOException
+    {
+        copyAndApply(FilterPipeline.empty().sharpen());
+    }
+
+    /**
+     * Rozmaže obrázek box filtrem a ukládá ho
+     * @param radius poloměr v pixelech
+     * @throws IOException
+     */
+    public void copyAndBoxBlur(int radius) throws IOException
+    {
+        copyAndApply(FilterPipeline.empty().boxBlur(radius));
+    }
+
+    /**
+     * Ukládá černobílou mapu hran obrázku
+     * @param operator operátor (sobel nebo laplacian)
+     * @throws IOException
+     */
+    public void copyAndDetectEdges(EdgeOperator operator) throws IOException
+    {
+        copyAndApply(FilterPipeline.empty().detectEdges(operator));
+    }
+
+    /**
+     * Použije na kopii obrázku celý řetězec filtrů a výsledek uloží jednou do souboru jméno_přípona řetězce
+     * @param pipeline řetězec filtrů
+     * @throws IOException
+     */
+    public void copyAndApply(FilterPipeline pipeline) throws IOException
+    {
+        if (pipeline.isEmpty())
+        {
+            throw new IllegalArgumentException("Filter chain is empty");
+        }
+        if (isStreamed())
+        {
+            copyAndApplyStreamed(pipeline);
+            return;
         }
+        BufferedImage copiedImage = readForFilter();
+        pipeline.apply(copiedImage);
+        writeFiltered(pipeline, copiedImage);
+    }
 
-        gaussianBlur(pixels, width, height);
+    /**
+     * Vrací, zda se obrázek filtruje proudově po pásech (pixely mimo haldu nebo velký obrázek), čtení, filtr a zápis
+     * pak nejdou oddělit
+     * @return boolean
+     */
+    boolean isStreamed()
+    {
+        return pixelStorage != PixelStorage.heap || isTiled();
+    }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                double weight = pixels[3][y * width + x];
-                int rgb = 0xFF;
-                for (int ch = 0; ch < 3; ch++) {
-                    int val = (int)Math.round(Math.pow(pixels[ch][y * width + x] / weight, 1 / 2.2) * 255);
-                    if (val < 0)
-                        val = 0;
-                    else if (val > 255)
-                        val = 255;
-                    rgb = rgb << 8 | val;
-                }
-                image.setRGB(x, y, rgb);
-            }
+    /**
+     * Použije řetězec filtrů po pásech a výsledek uloží, viz writeBanded
+     * @param pipeline řetězec filtrů
+     * @throws IOException
+     */
+    void copyAndApplyStreamed(FilterPipeline pipeline) throws IOException
+    {
+        File outputfile = getOutputFile(pipeline);
+        if (pixelStorage != PixelStorage.heap)
+        {
+            OffHeapRaster raster = getOffHeapRaster();
+            writeBanded(pipeline, outputfile, raster::readBand);
+            return;
         }
-        ImageIO.write(image, extension, outFile);
+        withReader(reader -> {
+            writeBanded(pipeline, outputfile, (y, rows) -> readRows(reader, y, rows));
+            return null;
+        });
+    }
 
+    /**
+     * Vrací kopii dekódovaných pixelů, na kterou se může použít řetězec filtrů (první fáze copyAndApply)
+     * @return BufferedImage
+     * @throws IOException
+     */
+    BufferedImage readForFilter() throws IOException
+    {
+        return cloneBufferedImage(getBufferedImage());
     }
 
-    private static void gaussianBlur(double[][] pixels, int width, int height)
+    /**
+     * Zakóduje a uloží výsledek řetězce filtrů (poslední fáze copyAndApply)
+     * @param pipeline použitý řetězec filtrů, určuje jméno souboru
+     * @param filtered výsledný obrázek
+     * @throws IOException
+     */
+    void writeFiltered(FilterPipeline pipeline, BufferedImage filtered) throws IOException
     {
-        final double RADIUS = 4.5;
-        double scaler = -1 / (RADIUS * RADIUS * 2);
+        encode(filtered, getOutputFile(pipeline));
+    }
 
-        int length = Integer.highestOneBit(width * 2 - 1) * 2;
-        double[] kernel = new double[length];
-        for (int i = -(width - 1); i < width; i++)
-            kernel[(i + length) % length] = Math.exp(scaler * i * i);
-        GaussianBlurService conv = new GaussianBlurService(kernel);
+    /**
+     * Zakóduje obrázek ve formátu zjištěném z hlavičky původního souboru, přípona jména souboru na formát nemá vliv
+     * @param image obrázek
+     * @param outputfile výstupní soubor
+     * @throws IOException když pro formát a typ obrázku není writer
+     */
+    private void encode(RenderedImage image, File outputfile) throws IOException
+    {
+        if (!ImageIO.write(image, formatName, outputfile))
+        {
+            throw new IOException("No " + formatName + " writer for " + outputfile.getName());
+        }
+    }
 
-        double[] lineReal = new double[length];
-        double[] lineImag = new double[length];
-        for (double[] pixel : pixels) {
-            for (int y = 0; y < height; y++) {
-                System.arraycopy(pixel, y * width, lineReal, 0, width);
-                Arrays.fill(lineReal, width, lineReal.length, 0);
-                Arrays.fill(lineImag, 0);
-                conv.convolve(lineReal, lineImag);
-                System.arraycopy(lineReal, 0, pixel, y * width, width);
-            }
+    /**
+     * Vrací výstupní soubor jméno_přípona řetězce ve stejné složce jako původní obrázek, obrázky se stejným jménem
+     * z různých podsložek se tak navzájem nepřepisují. Soubor bez přípony dostane výstup také bez přípony
+     */
+    private File getOutputFile(FilterPipeline pipeline)
+    {
+        String nameNoExtension = name.replaceFirst("[.][^.]+$", "");
+        String outputName = nameNoExtension + "_" + pipeline.getSuffix();
+        if (!nameNoExtension.equals(name))
+        {
+            outputName += "." + extension;
         }
+        return new File(new File(path).getParentFile(), outputName);
+    }
 
-        length = Integer.highestOneBit(height * 2 - 1) * 2;
-        kernel = new double[length];
-        for (int i = -(height - 1); i < height; i++)
-            kernel[(i + length) % length] = Math.exp(scaler * i * i);
-        conv = new GaussianBlurService(kernel);
-
-        lineReal = new double[length];
-        lineImag = new double[length];
-        for (int ch = 0; ch < pixels.length; ch++) {
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++)
-                    lineReal[y] = pixels[ch][y * width + x];
-                Arrays.fill(lineReal, height, lineReal.length, 0);
-                Arrays.fill(lineImag, 0);
-                conv.convolve(lineReal, lineImag);
-                for (int y = 0; y < height; y++)
-                    pixels[ch][y * width + x] = lineReal[y];
-            }
+    /**
+     * Zpracování po pásech: každý pás se načte i s okraji, které řetězec potřebuje (FilterPipeline.getHalo), použije
+     * se na něj řetězec (FilterPipeline.applyBand, algoritmy podle výšky celého obrázku), okraje se odříznou a pás se
+     * zapíše. Výstup se počítá líně přes BandedImage, PNG se tak zapisuje průběžně a v paměti je jen jeden pás
+     * @param pipeline řetězec filtrů
+     * @param outputfile výstupní soubor
+     * @param source zdroj řádků (region souboru nebo OffHeapRaster)
+     * @throws IOException
+     */
+    private void writeBanded(FilterPipeline pipeline, File outputfile, BandedImage.BandSource source) throws IOException
+    {
+        int halo = pipeline.getHalo(height);
+        BandedImage output = new BandedImage(width, height, getBandHeight(), (y, rows) -> {
+            int top = Math.max(0, y - halo);
+            int bottom = Math.min(height, y + rows + halo);
+            BufferedImage band = source.read(top, bottom - top);
+            pipeline.applyBand(band, height);
+            return band.getSubimage(0, y - top, width, rows);
+        });
+        try
+        {
+            encode(output, outputfile);
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
         }
     }
 
     /**
-     * Vrací mapu barev a jejich počtu výskytu v obrázku
-     * @return Map<String, Integer>
+     * Vrací histogram barev celého obrázku
+     * @return ColorHistogram
+     * @throws IOException
      */
-    public Map<String, Integer> getMostCommonColors()
+    public ColorHistogram getHistogram() throws IOException
     {
-        Map<String, Integer> dictionary = new HashMap<>();
-        for (int y = 0; y < bufferedImageInstance.getHeight(); y++)
+        ColorHistogram histogram = new ColorHistogram();
+        accumulateHistogram(histogram);
+        return histogram;
+    }
+
+    /**
+     * Přičte barvy všech pixelů obrázku do daného histogramu, histogram nezměněného obrázku se bere z AnalysisCache
+     * @param histogram cílový histogram
+     * @throws IOException
+     */
+    public void accumulateHistogram(ColorHistogram histogram) throws IOException
+    {
+        histogram.merge(AnalysisCache.getShared().getHistogram(new File(path), this::computeHistogram));
+    }
+
+    /**
+     * Vrací statistiky pixelů obrázku (počet různých barev, průměrná barva, nejčastější barvy) z AnalysisCache
+     * @return ImageStatistics
+     */
+    public ImageStatistics getStatistics()
+    {
+        try
         {
-            for (int x = 0; x < bufferedImageInstance.getWidth(); x++)
-            {
-                Color c = new Color(bufferedImageInstance.getRGB(x, y), true);
+            return AnalysisCache.getShared().getStatistics(new File(path), this::computeHistogram);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
 
-                String hex = String.format("#%06x", c.getRGB() & 0x00FFFFFF);
-                if(dictionary.containsKey(hex))
+    /**
+     * Spočítá histogram barev z pixelů obrázku
+     * @return ColorHistogram
+     * @throws IOException
+     */
+    private ColorHistogram computeHistogram() throws IOException
+    {
+        File file = new File(path);
+        if (!isUpToDate(file))
+        {
+            // AnalysisCache ukládá výsledek pod otisk aktuálního souboru, pixely načtené před jeho změnou se tak použít nesmí
+            releasePixels();
+            Image current = new Image(file);
+            try
+            {
+                return current.computeHistogram();
+            }
+            finally
+            {
+                current.releasePixels();
+            }
+        }
+        ColorHistogram histogram = new ColorHistogram();
+        if (pixelStorage != PixelStorage.heap)
+        {
+            getOffHeapRaster().accumulateHistogram(histogram);
+            return histogram;
+        }
+        if (isTiled())
+        {
+            withReader(reader -> {
+                int bandHeight = getBandHeight();
+                for (int y = 0; y < height; y += bandHeight)
                 {
-                    dictionary.put(hex, dictionary.get(hex)+1);
+                    BufferedImage band = readRows(reader, y, Math.min(bandHeight, height - y));
+                    histogram.addAll(PixelAccess.of(band));
                 }
-                else
+                return null;
+            });
+            return histogram;
+        }
+        histogram.addAll(PixelAccess.of(getBufferedImage()));
+        return histogram;
+    }
+
+    /**
+     * Přičte do histogramu jen každý step-tý pixel v obou směrech. Pokud jsou pixely nezměněného souboru už dekódované
+     * (PixelCache, pixely mimo haldu, RasterDiskCache), vzorek se bere z nich bez dekódování. Jinak se obrázek dekóduje
+     * se zmenšeným rozlišením (ImageReadParam.setSourceSubsampling) a neukládá se do PixelCache. Zrychlení o řád proti
+     * celému histogramu platí jen pro pixely z paměti (24 Mpx JPEG: 20-40 ms proti zhruba 180 ms). JPEG reader JDK
+     * i při podvzorkování dekóduje entropické kódování všech bloků, odhad dosud nenačteného JPEG proto trvá skoro stejně
+     * dlouho jako celý histogram
+     * @param histogram cílový histogram
+     * @param step krok vzorkování
+     * @throws IOException
+     */
+    public void accumulateSampledHistogram(ColorHistogram histogram, int step) throws IOException
+    {
+        if (step <= 1)
+        {
+            accumulateHistogram(histogram);
+            return;
+        }
+        if (accumulateSampledFromMemory(histogram, step))
+        {
+            return;
+        }
+        BufferedImage sample = withReader(reader -> {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        });
+        histogram.addAll(PixelAccess.of(sample));
+    }
+
+    /**
+     * Přičte každý step-tý pixel z už dekódovaných pixelů, pokud nějaké jsou a soubor se od načtení nezměnil
+     * @return boolean, zda se vzorek vzal z paměti
+     */
+    private boolean accumulateSampledFromMemory(ColorHistogram histogram, int step)
+    {
+        File file = new File(path);
+        if (!isUpToDate(file))
+        {
+            return false;
+        }
+        int[] row = new int[width];
+        synchronized (this)
+        {
+            if (offHeap != null)
+            {
+                for (int y = 0; y < height; y += step)
                 {
-                    dictionary.put(hex, 1);
+                    offHeap.getRow(y, row);
+                    addSampledRow(histogram, row, step);
                 }
+                return true;
             }
         }
+        BufferedImage cached = PixelCache.getShared().peek(path);
+        if (cached == null)
+        {
+            cached = RasterDiskCache.getShared().peek(file);
+        }
+        if (cached == null)
+        {
+            return false;
+        }
+        PixelAccess pixels = PixelAccess.of(cached);
+        for (int y = 0; y < height; y += step)
+        {
+            pixels.getRow(y, row);
+            addSampledRow(histogram, row, step);
+        }
+        return true;
+    }
+
+    private void addSampledRow(ColorHistogram histogram, int[] row, int step)
+    {
+        for (int x = 0; x < width; x += step)
+        {
+            histogram.add(row[x]);
+        }
+    }
 
-        dictionary = dictionary.entrySet()
-                .stream()
-                .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                .limit(15)
-                .collect(Collectors.toMap(
-                        Map.Entry::getKey,
-                        Map.Entry::getValue,
-                        (oldValue, newValue) -> oldValue,
-                        LinkedHashMap::new
-                ));
-        return dictionary;
+    /**
+     * Vrací rychlý odhad nejčastějších barev spočítaný ze vzorku pixelů, včetně intervalů spolehlivosti. O řád rychlejší
+     * než celý histogram je jen u obrázku s dekódovanými pixely v paměti, u nenačteného JPEG skoro vůbec, viz
+     * accumulateSampledHistogram
+     * @return List<ColorEstimate>
+     */
+    public List<ColorEstimate> getMostCommonColorsApprox()
+    {
+        ColorHistogram sample = new ColorHistogram();
+        try
+        {
+            accumulateSampledHistogram(sample, ColorEstimate.samplingStep(getTotalPixels()));
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        return ColorEstimate.fromHistogram(sample, getTotalPixels(), ColorHistogram.TOP_COLORS);
+    }
+
+    /**
+     * Vrací mapu barev a jejich počtu výskytu v obrázku
+     * @return Map<String, Long>
+     */
+    public Map<String, Long> getMostCommonColors()
+    {
+        return getStatistics().getMostCommonColors();
     }
 
     /**
@@ -1,23 +1,61 @@
 package app;
 
 import com.drew.imaging.ImageProcessingException;
+import utils.ColorEstimate;
+import utils.ColorHistogram;
+import utils.FilterPipeline;
+import utils.GaussianBlur;
+import utils.MetadataFormat;
+import utils.MetadataTag;
 import utils.SortingMethod;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Třída zajišťující uložení obrázků do kolekce
  * @author Adam Petříček
  */
 public class ImageCollection {
+    /**
+     * Kolik souborů na vlákno se může najednou načítat, než se průchod složky zastaví
+     */
+    private static final int LOAD_QUEUE_PER_THREAD = 4;
+
     public int imagesLoaded;
     private ArrayList<Image> images;
     private String changed;
+    private Map<String, String> failedFiles;
+    private List<String> addedFiles;
+    private List<String> updatedFiles;
+    private List<String> removedFiles;
+    private Duration loadDuration;
+    private ForkJoinPool pool;
+    private final int metadataThreads;
+    private final ExecutorService metadataPool;
+    private final BatchEngine batchEngine;
 
     public ArrayList<Image> getImages() {
         return images;
@@ -28,6 +66,74 @@ public class ImageCollection {
         return changed;
     }
 
+    /**
+     * Vrací soubory, které se při posledním načítání nepodařilo načíst, spolu s důvodem chyby
+     * @return Map<String, String>
+     */
+    public Map<String, String> getFailedFiles()
+    {
+        return failedFiles;
+    }
+
+    /**
+     * Vrací soubory (cesty relativně ke kořeni složky), které při posledním načítání do kolekce nově přibyly
+     * @return List<String>
+     */
+    public List<String> getAddedFiles()
+    {
+        return addedFiles;
+    }
+
+    /**
+     * Vrací soubory (cesty relativně ke kořeni složky), které se při posledním načítání načetly znovu, protože se od minula změnily
+     * @return List<String>
+     */
+    public List<String> getUpdatedFiles()
+    {
+        return updatedFiles;
+    }
+
+    /**
+     * Vrací soubory (cesty relativně ke kořeni složky) obrázků, které se při posledním načítání odebraly, protože soubor zmizel
+     * @return List<String>
+     */
+    public List<String> getRemovedFiles()
+    {
+        return removedFiles;
+    }
+
+    /**
+     * Vrací dobu trvání posledního načítání kolekce
+     * @return Duration
+     */
+    public Duration getLoadDuration()
+    {
+        return loadDuration;
+    }
+
+    /**
+     * Nastaví počet vláken, na kterých se obrázky zpracovávají
+     * @param parallelism počet vláken
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        pool.shutdown();
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Vrací počet vláken, na kterých se obrázky zpracovávají
+     * @return int
+     */
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+
     public Image getImage(int i)
     {
         return images.get(i);
@@ -42,6 +148,36 @@ public class ImageCollection {
         this.changed = formatter.format(LocalTime.now());
         this.imagesLoaded = 0;
         this.images = new ArrayList<>();
+        this.failedFiles = new LinkedHashMap<>();
+        this.addedFiles = new ArrayList<>();
+        this.updatedFiles = new ArrayList<>();
+        this.removedFiles = new ArrayList<>();
+        this.loadDuration = Duration.ZERO;
+        this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        this.metadataThreads = Integer.getInteger("analyzator.metadataThreads",
+                Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        this.metadataPool = newMetadataPool(metadataThreads);
+        this.batchEngine = BatchEngine.withDefaults();
+    }
+
+    /**
+     * Vytvoří pool pro čtení metadat. Čtení čeká hlavně na disk, proto má víc vláken než procesorů, počet je ale omezený,
+     * aby velká složka neotevřela najednou stovky souborů. Vlákna jsou démoni, takže nebrání ukončení aplikace
+     * @param threads počet vláken
+     * @return ExecutorService
+     */
+    private static ExecutorService newMetadataPool(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("Metadata threads must be positive");
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "metadata-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
@@ -50,52 +186,260 @@ public class ImageCollection {
      */
     public void removeImage(int index)
     {
-        images.remove(index-1);
+        Image removed = images.remove(index-1);
+        removed.releasePixels();
         imagesLoaded-=1;
     }
 
     /**
-     * Naplní kolekci novými instancemi příslušené třídy, vrací počet obrázků co se načetly
+     * Srovná kolekci s danými soubory a vrací počet obrázků v kolekci, viz fillCollection(ImageScanner). Pro null nebo
+     * prázdné pole (např. neexistující složka z File.listFiles) kolekci nemění a vrací 0
      * @param files
      * @return int
      */
     public int fillCollection(File[] files)
     {
-        if(files == null || files.length == 0)
+        if (files == null || files.length == 0)
         {
             return 0;
         }
-        images = new ArrayList<>();
-        imagesLoaded = 0;
-        for (File currentFile : files)
+        try
         {
-            boolean succesfullyCreated = false;
-            Image i = new Image(currentFile);
+            return sync(null, consumer -> {
+                for (File file : files)
+                {
+                    consumer.accept(file);
+                }
+            });
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Srovná kolekci s obrázky, které najde scanner, a vrací počet obrázků v kolekci. Soubory se porovnávají podle cesty,
+     * velikosti a času změny: nezměněné obrázky zůstávají i s načtenými pixely, nové a změněné soubory se načítají
+     * paralelně už během procházení složky a obrázky smazaných souborů se z kolekce odeberou a uvolní.
+     * Chyby se zaznamenají do getFailedFiles()
+     * @param scanner scanner složky s obrázky
+     * @return int
+     * @throws IOException když složku nejde projít
+     */
+    public int fillCollection(ImageScanner scanner) throws IOException
+    {
+        return sync(scanner.getRoot(), scanner::scan);
+    }
+
+    /**
+     * Vrací jméno souboru pro výpis změn a chyb: cestu relativně ke kořeni, bez kořene jen jméno souboru
+     * @param root kořen procházené složky nebo null
+     * @param file soubor
+     * @return String
+     */
+    private static String reportName(Path root, File file)
+    {
+        if (root == null)
+        {
+            return file.getName();
+        }
+        return root.toAbsolutePath().relativize(file.toPath().toAbsolutePath()).toString();
+    }
+
+    /**
+     * Zdroj souborů pro srovnání kolekce
+     */
+    @FunctionalInterface
+    private interface FileSource
+    {
+        void forEach(ImageScanner.FileConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Srovná kolekci se soubory ze zdroje. Načítání nového souboru se spustí na poolu hned, jak ho zdroj ohlásí,
+     * rozpracovaných souborů je ale nejvýš LOAD_QUEUE_PER_THREAD na vlákno, pomalé načítání tak průchod složky přibrzdí
+     * místo toho, aby se hromadily úlohy. Soubory se ve výpisech změn a chyb uvádí cestou relativně ke kořeni
+     * procházené složky, bez kořene jménem souboru
+     */
+    private int sync(Path root, FileSource source) throws IOException
+    {
+        Instant start = Instant.now();
+        Map<String, Image> previous = new HashMap<>();
+        for (Image image : images)
+        {
+            previous.put(image.getPath(), image);
+        }
+        List<Image> synced = new ArrayList<>();
+        List<File> toLoad = new ArrayList<>();
+        List<Future<Image>> results = new ArrayList<>();
+        Set<String> updated = new HashSet<>();
+        Semaphore slots = new Semaphore(LOAD_QUEUE_PER_THREAD * pool.getParallelism());
+        boolean listed = false;
+        try
+        {
+            source.forEach(file -> {
+                Image existing = previous.remove(file.getAbsolutePath());
+                if (existing != null && existing.isUpToDate(file))
+                {
+                    synced.add(existing);
+                    return;
+                }
+                if (existing != null)
+                {
+                    existing.releasePixels();
+                    updated.add(file.getAbsolutePath());
+                }
+                try
+                {
+                    slots.acquire();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while loading images");
+                }
+                toLoad.add(file);
+                results.add(pool.submit(() -> {
+                    try
+                    {
+                        return new Image(file);
+                    }
+                    finally
+                    {
+                        slots.release();
+                    }
+                }));
+            });
+            listed = true;
+        }
+        finally
+        {
+            // při jakékoli chybě průchodu (i UncheckedIOException) se už spuštěné načítání zruší
+            if (!listed)
+            {
+                for (Future<Image> result : results)
+                {
+                    result.cancel(true);
+                }
+            }
+        }
+        removedFiles = new ArrayList<>();
+        for (Image removed : previous.values())
+        {
+            removed.releasePixels();
+            AnalysisCache.getShared().invalidate(new File(removed.getPath()));
+            removedFiles.add(reportName(root, new File(removed.getPath())));
+        }
+
+        addedFiles = new ArrayList<>();
+        updatedFiles = new ArrayList<>();
+        failedFiles = new LinkedHashMap<>();
+        for (int i = 0; i < toLoad.size(); i++)
+        {
+            File file = toLoad.get(i);
             try
             {
-                images.add(new Image(currentFile));
-                succesfullyCreated = true;
+                synced.add(results.get(i).get());
+                if (updated.contains(file.getAbsolutePath()))
+                {
+                    updatedFiles.add(reportName(root, file));
+                }
+                else
+                {
+                    addedFiles.add(reportName(root, file));
+                }
             }
-            catch(Exception ignored)
+            catch (ExecutionException ex)
             {
-
+                failedFiles.put(reportName(root, file), describeFailure(ex));
             }
-            if(succesfullyCreated)
+            catch (InterruptedException ex)
             {
-                imagesLoaded += 1;
+                Thread.currentThread().interrupt();
+                failedFiles.put(reportName(root, file), "interrupted");
             }
         }
+        images = new ArrayList<>(synced);
+        imagesLoaded = images.size();
         sort(SortingMethod.name);
+        if (!addedFiles.isEmpty() || !updatedFiles.isEmpty() || !removedFiles.isEmpty())
+        {
+            changed = DateTimeFormatter.ofPattern("HH:mm:ss").format(LocalTime.now());
+        }
+        loadDuration = Duration.between(start, Instant.now());
         return imagesLoaded;
     }
 
+    /**
+     * Vrací původní výjimku úlohy, ForkJoinPool ji může obalit kopií stejného typu
+     * @param ex výjimka z Future.get()
+     * @return Throwable
+     */
+    private static Throwable unwrap(ExecutionException ex)
+    {
+        Throwable cause = ex.getCause();
+        if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass())
+        {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Vrací čitelný popis chyby úlohy
+     * @param ex výjimka z Future.get()
+     * @return String
+     */
+    private static String describeFailure(ExecutionException ex)
+    {
+        return unwrap(ex).getMessage();
+    }
+
+    /**
+     * Spustí úlohy na poolu kolekce a vrátí jejich výsledky ve stejném pořadí, první chybu vyhodí dál
+     * @param tasks úlohy
+     * @return List<T>
+     * @throws IOException
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException
+    {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : pool.invokeAll(tasks))
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (ExecutionException ex)
+            {
+                Throwable cause = unwrap(ex);
+                if (cause instanceof IOException ioException)
+                {
+                    throw ioException;
+                }
+                if (cause instanceof RuntimeException runtimeException)
+                {
+                    throw runtimeException;
+                }
+                throw new IOException(cause);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while processing images");
+            }
+        }
+        return results;
+    }
+
     /**
      * Vrací celkový počet pixelů všech obrázků v kolekci
-     * @return int
+     * @return long
      */
-    public int getTotalPixelsAll()
+    public long getTotalPixelsAll()
     {
-        int total = 0;
+        long total = 0;
         for(Image image : images )
         {
             total += image.getTotalPixels();
@@ -104,31 +448,105 @@ public class ImageCollection {
     }
 
     /**
-     * Vrací metadata všech obrázků v kolekci
-     * @return StringBuilder
+     * Zapíše metadata všech obrázků v kolekci jako čitelný text do daného writeru
+     * @param out cílový writer, po zápisu se jen vyprázdní (flush), nezavírá se
+     * @throws ImageProcessingException
+     * @throws IOException
+     */
+    public void getMetadataAll(Writer out) throws ImageProcessingException, IOException
+    {
+        exportMetadataAll(out, MetadataFormat.text);
+    }
+
+    /**
+     * Zapíše metadata všech obrázků v kolekci do writeru v daném formátu. Čtou se jen metadata bez dekódování pixelů,
+     * paralelně na omezeném poolu pro čtení z disku, a zapisují se průběžně v pořadí kolekce. Dopředu se čte nejvýš
+     * dvojnásobek počtu vláken obrázků, paměť tedy nezávisí na velikosti kolekce
+     * @param out cílový writer, po zápisu se jen vyprázdní (flush), nezavírá se
+     * @param format formát výstupu
      * @throws ImageProcessingException
      * @throws IOException
      */
-    public StringBuilder getMetadataAll() throws ImageProcessingException, IOException
+    public void exportMetadataAll(Writer out, MetadataFormat format) throws ImageProcessingException, IOException
     {
-        StringBuilder returnString = new StringBuilder();
-        for(Image image : images)
+        MetadataWriter writer = new MetadataWriter(out, format);
+        writer.begin();
+        int window = 2 * metadataThreads;
+        ArrayDeque<Future<List<MetadataTag>>> pending = new ArrayDeque<>(window);
+        int next = 0;
+        try
+        {
+            for (int written = 0; written < images.size(); written++)
+            {
+                while (next < images.size() && pending.size() < window)
+                {
+                    pending.add(metadataPool.submit(images.get(next++)::getMetadataTags));
+                }
+                writer.write(images.get(written), awaitMetadata(pending.poll()));
+            }
+        }
+        finally
         {
-            returnString.append(image.getMetadata());
+            for (Future<List<MetadataTag>> future : pending)
+            {
+                future.cancel(true);
+            }
         }
-        return returnString;
+        out.flush();
     }
 
     /**
-     * Ukládá metadata všech obrázků v kolekci do souboru
+     * Počká na tagy jednoho obrázku a případnou chybu vyhodí s původním typem
+     * @param future úloha čtení metadat
+     * @return List<MetadataTag>
+     * @throws ImageProcessingException
+     * @throws IOException
+     */
+    private static List<MetadataTag> awaitMetadata(Future<List<MetadataTag>> future) throws ImageProcessingException, IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = unwrap(ex);
+            if (cause instanceof ImageProcessingException processingException)
+            {
+                throw processingException;
+            }
+            if (cause instanceof IOException ioException)
+            {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException)
+            {
+                throw runtimeException;
+            }
+            throw new IOException(cause);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading metadata");
+        }
+    }
+
+    /**
+     * Uloží metadata všech obrázků v kolekci do jednoho souboru img/metadata s příponou podle formátu
+     * @param format formát výstupu
+     * @return File
      * @throws IOException
      * @throws ImageProcessingException
      */
-    public void saveMetadataAll() throws IOException, ImageProcessingException {
-        for(Image image : images)
+    public File saveMetadataAll(MetadataFormat format) throws IOException, ImageProcessingException
+    {
+        File result = new File("img/metadata." + format.getExtension());
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(result), StandardCharsets.UTF_8)))
         {
-            image.saveMetadata();
+            exportMetadataAll(out, format);
         }
+        return result;
     }
 
     /**
@@ -137,10 +555,7 @@ public class ImageCollection {
      */
     public void copyAndMakeGreyAll() throws IOException
     {
-        for(Image image : images)
-        {
-            image.copyAndMakeGrey();
-        }
+        copyAndApplyAll(FilterPipeline.empty().grey());
     }
 
     /**
@@ -149,10 +564,28 @@ public class ImageCollection {
      */
     public void copyAndBlurAll() throws IOException
     {
-        for(Image image : images)
-        {
-            image.copyAndBlur();
-        }
+        copyAndBlurAll(GaussianBlur.DEFAULT_RADIUS);
+    }
+
+    /**
+     * Vytváří rozmazané kopie všech obrázků v kolekci s daným poloměrem
+     * @param radius poloměr (směrodatná odchylka) Gaussova rozmazání
+     * @throws IOException
+     */
+    public void copyAndBlurAll(double radius) throws IOException
+    {
+        copyAndApplyAll(FilterPipeline.empty().blur(radius));
+    }
+
+    /**
+     * Použije řetězec filtrů na kopie všech obrázků v kolekci. Čtení, filtr a zápis běží jako samostatné fáze
+     * s vlastními vlákny a omezenými frontami mezi sebou (BatchEngine), zápis jednoho obrázku tak neblokuje filtr dalšího
+     * @param pipeline řetězec filtrů
+     * @throws IOException
+     */
+    public void copyAndApplyAll(FilterPipeline pipeline) throws IOException
+    {
+        batchEngine.run(images, pipeline);
     }
 
     /**
@@ -161,34 +594,73 @@ public class ImageCollection {
      */
     public void invertAll() throws IOException
     {
-        for(Image image : images)
-        {
-            image.copyAndInvert();
-        }
+        copyAndApplyAll(FilterPipeline.empty().invert());
     }
 
     /**
-     * Vrací mapu barvy a počtu výskytů ze všech obrázků v kolekci
-     * @return
+     * Vrací mapu barvy a počtu výskytů ze všech obrázků v kolekci. Počty jsou přesné, obrázky se počítají paralelně,
+     * každé vlákno sčítá do vlastního dílčího histogramu a ty se nakonec sloučí, paměť tedy roste s počtem vláken, ne obrázků
+     * @return Map<String, Long>
      */
-    public Map<String, Integer> getMostCommonColorsAll()
+    public Map<String, Long> getMostCommonColorsAll()
     {
-        Map<String, Integer> map = new HashMap<>();
-        for(Image image : images)
+        return collectHistogram(Image::accumulateHistogram).topAsMap(ColorHistogram.TOP_COLORS);
+    }
+
+    /**
+     * Vrací rychlý odhad nejčastějších barev ve všech obrázcích. Všechny obrázky se vzorkují se stejným krokem,
+     * takže se vzorky dají přímo sečíst a přepočítat na celkový počet pixelů
+     * @return List<ColorEstimate>
+     */
+    public List<ColorEstimate> getMostCommonColorsApproxAll()
+    {
+        long totalPixels = getTotalPixelsAll();
+        int step = ColorEstimate.samplingStep(totalPixels);
+        ColorHistogram sample = collectHistogram((image, histogram) -> image.accumulateSampledHistogram(histogram, step));
+        return ColorEstimate.fromHistogram(sample, totalPixels, ColorHistogram.TOP_COLORS);
+    }
+
+    /**
+     * Způsob, jakým obrázek přičte své pixely do histogramu
+     */
+    @FunctionalInterface
+    private interface HistogramAction
+    {
+        void accumulate(Image image, ColorHistogram histogram) throws IOException;
+    }
+
+    /**
+     * Paralelně sečte histogramy všech obrázků. Každé vlákno sčítá do vlastního dílčího histogramu a ty se nakonec sloučí.
+     * Obrázky se spouští od největšího, pásy velkých obrázků si berou vlákna, která už jsou se svými obrázky hotová
+     * @param action způsob počítání histogramu jednoho obrázku
+     * @return ColorHistogram
+     */
+    private ColorHistogram collectHistogram(HistogramAction action)
+    {
+        Map<Thread, ColorHistogram> partials = new ConcurrentHashMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>(images.size());
+        for (Image image : CostScheduler.largestFirst(images, image -> CostScheduler.estimateCost(image, 1)))
         {
-            Map<String, Integer> returnedValues = image.getMostCommonColors();
-            returnedValues.forEach((k, v) -> map.merge(k, v, Integer::sum));
+            tasks.add(() -> {
+                action.accumulate(image, partials.computeIfAbsent(Thread.currentThread(), thread -> new ColorHistogram()));
+                return null;
+            });
         }
-        return map.entrySet()
-                .stream()
-                .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                .limit(15)
-                .collect(Collectors.toMap(
-                        Map.Entry::getKey,
-                        Map.Entry::getValue,
-                        (oldValue, newValue) -> oldValue,
-                        LinkedHashMap::new
-                ));
+        try
+        {
+            invokeAll(tasks);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+
+        ColorHistogram total = new ColorHistogram();
+        for (ColorHistogram partial : partials.values())
+        {
+            total.merge(partial);
+        }
+        return total;
     }
 
     /**
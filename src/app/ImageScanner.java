@@ -0,0 +1,191 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Rekurzivně prochází složku (Files.walkFileTree) a hlásí soubory obrázků hned, jak je najde, zpracování tak může
+ * začít dřív, než průchod velké složky skončí. Soubory se dají omezit hloubkou, globem a velikostí, o tom, zda jde
+ * o obrázek, rozhoduje obsah souboru (hlavička PNG nebo JPEG), ne přípona, takže projde i PHOTO.JPG nebo obrázek
+ * bez přípony.
+ * @author Adam Petříček
+ */
+public final class ImageScanner {
+    private static final byte[] PNG_MAGIC = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final byte[] JPEG_MAGIC = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF };
+
+    private final Path root;
+    private int maxDepth = Integer.MAX_VALUE;
+    private String glob;
+    private PathMatcher matcher;
+    private long minSize = 1;
+    private long maxSize = Long.MAX_VALUE;
+
+    /**
+     * Rozhraní, kterému scanner předává nalezené soubory
+     */
+    @FunctionalInterface
+    public interface FileConsumer
+    {
+        void accept(File file) throws IOException;
+    }
+
+    /**
+     * Konstruktor
+     * @param root procházená složka
+     */
+    public ImageScanner(Path root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Nastaví maximální hloubku průchodu, 1 = jen soubory přímo ve složce
+     * @param maxDepth hloubka
+     * @return ImageScanner
+     */
+    public ImageScanner setMaxDepth(int maxDepth)
+    {
+        if (maxDepth < 1)
+        {
+            throw new IllegalArgumentException("Depth must be positive");
+        }
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Nastaví glob, kterému musí soubor odpovídat (bez ohledu na velikost písmen). Glob bez lomítka se porovnává
+     * se jménem souboru, jinak s cestou relativní ke složce, např. *.png nebo 2022/**.jpg
+     * @param glob glob, null filtr vypne
+     * @return ImageScanner
+     */
+    public ImageScanner setGlob(String glob)
+    {
+        this.glob = glob;
+        this.matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob.toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    /**
+     * Nastaví rozsah velikosti souboru v bajtech (včetně mezí)
+     * @param minSize nejmenší velikost
+     * @param maxSize největší velikost
+     * @return ImageScanner
+     */
+    public ImageScanner setSizeRange(long minSize, long maxSize)
+    {
+        if (minSize < 0 || maxSize < minSize)
+        {
+            throw new IllegalArgumentException("Invalid size range");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public Path getRoot()
+    {
+        return root;
+    }
+
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    public String getGlob()
+    {
+        return glob;
+    }
+
+    /**
+     * Projde složku a každý nalezený obrázek hned předá dál. Nečitelné podsložky a soubory se přeskočí,
+     * symbolické odkazy na složky se nenásledují
+     * @param consumer příjemce nalezených souborů
+     * @throws IOException když složka neexistuje nebo když chybu vyhodí příjemce
+     */
+    public void scan(FileConsumer consumer) throws IOException
+    {
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                if (attributes.isRegularFile() && attributes.size() >= minSize && attributes.size() <= maxSize
+                        && matches(file) && isImage(file))
+                {
+                    consumer.accept(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean matches(Path file)
+    {
+        if (matcher == null)
+        {
+            return true;
+        }
+        Path candidate = glob.indexOf('/') < 0 ? file.getFileName() : root.relativize(file);
+        return matcher.matches(Path.of(candidate.toString().toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Vrací, zda soubor začíná hlavičkou PNG nebo JPEG, nečitelný soubor se bere jako neobrázek
+     * @param file soubor
+     * @return boolean
+     */
+    public static boolean isImage(Path file)
+    {
+        byte[] header = new byte[PNG_MAGIC.length];
+        int read = 0;
+        try (InputStream input = Files.newInputStream(file))
+        {
+            int count;
+            while (read < header.length && (count = input.read(header, read, header.length - read)) != -1)
+            {
+                read += count;
+            }
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+        return startsWith(header, read, PNG_MAGIC) || startsWith(header, read, JPEG_MAGIC);
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic)
+    {
+        if (length < magic.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++)
+        {
+            if (header[i] != magic[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package app;
+
+import utils.MetadataFormat;
+import utils.MetadataTag;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Zapisuje metadata obrázků do jednoho Writeru ve zvoleném formátu. Každý obrázek se zapíše hned, jak je k dispozici,
+ * v paměti se tedy drží jen tagy právě zapisovaného obrázku, ne celý výstup
+ * @author Adam Petříček
+ */
+final class MetadataWriter {
+    private static final String CSV_HEADER = "file,path,format,width,height,directory,tag,value";
+
+    private final Writer out;
+    private final MetadataFormat format;
+
+    /**
+     * @param out cílový writer, měl by být bufferovaný
+     * @param format formát výstupu
+     */
+    MetadataWriter(Writer out, MetadataFormat format)
+    {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * Zapíše začátek výstupu (u CSV řádek s názvy sloupců)
+     * @throws IOException
+     */
+    void begin() throws IOException
+    {
+        if (format == MetadataFormat.csv)
+        {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Zapíše metadata jednoho obrázku
+     * @param image obrázek
+     * @param tags tagy metadat obrázku
+     * @throws IOException
+     */
+    void write(Image image, List<MetadataTag> tags) throws IOException
+    {
+        switch (format)
+        {
+            case text -> writeText(image, tags);
+            case jsonl -> writeJson(image, tags);
+            case csv -> writeCsv(image, tags);
+        }
+    }
+
+    private void writeText(Image image, List<MetadataTag> tags) throws IOException
+    {
+        out.write(String.format("\n\nMetadata obrázku %s:\n\n", image.getName()));
+        for (MetadataTag tag : tags)
+        {
+            out.write(String.format("%s\n", tag));
+        }
+    }
+
+    private void writeJson(Image image, List<MetadataTag> tags) throws IOException
+    {
+        out.write("{\"file\":");
+        writeJsonString(image.getName());
+        out.write(",\"path\":");
+        writeJsonString(image.getPath());
+        out.write(",\"format\":");
+        writeJsonString(image.getFormatName());
+        out.write(",\"width\":" + image.getWidth() + ",\"height\":" + image.getHeight() + ",\"tags\":[");
+        for (int i = 0; i < tags.size(); i++)
+        {
+            MetadataTag tag = tags.get(i);
+            out.write(i == 0 ? "{\"directory\":" : ",{\"directory\":");
+            writeJsonString(tag.getDirectory());
+            out.write(",\"tag\":");
+            writeJsonString(tag.getName());
+            out.write(",\"value\":");
+            writeJsonString(tag.getDescription());
+            out.write('}');
+        }
+        out.write("]}\n");
+    }
+
+    private void writeJsonString(String value) throws IOException
+    {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"' -> out.write("\\\"");
+                case '\\' -> out.write("\\\\");
+                case '\n' -> out.write("\\n");
+                case '\r' -> out.write("\\r");
+                case '\t' -> out.write("\\t");
+                default ->
+                {
+                    if (c < 0x20)
+                    {
+                        out.write(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        out.write(c);
+                    }
+                }
+            }
+        }
+        out.write('"');
+    }
+
+    private void writeCsv(Image image, List<MetadataTag> tags) throws IOException
+    {
+        String prefix = csvField(image.getName()) + ',' + csvField(image.getPath()) + ',' + csvField(image.getFormatName())
+                + ',' + image.getWidth() + ',' + image.getHeight() + ',';
+        for (MetadataTag tag : tags)
+        {
+            out.write(prefix);
+            out.write(csvField(tag.getDirectory()));
+            out.write(',');
+            out.write(csvField(tag.getName()));
+            out.write(',');
+            out.write(csvField(tag.getDescription()));
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Pole CSV podle RFC 4180, do uvozovek se dává jen pole s čárkou, uvozovkou nebo koncem řádku
+     */
+    private static String csvField(String value)
+    {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+        {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,203 @@
+package app;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sdílená paměť dekódovaných pixelů s omezenou velikostí, při překročení limitu uvolňuje nejdéle nepoužité obrázky (LRU)
+ * @author Adam Petříček
+ */
+public final class PixelCache {
+    private static final PixelCache shared = new PixelCache(defaultBudget());
+
+    private final LinkedHashMap<String, BufferedImage> entries;
+    private long budgetBytes;
+    private long usedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Rozhraní pro dekódování obrázku, který v paměti chybí
+     */
+    @FunctionalInterface
+    public interface Loader
+    {
+        BufferedImage load() throws IOException;
+    }
+
+    /**
+     * Konstruktor
+     * @param budgetBytes maximální počet bajtů dekódovaných pixelů
+     */
+    public PixelCache(long budgetBytes)
+    {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        setBudget(budgetBytes);
+    }
+
+    /**
+     * Vrací sdílenou instanci, přes kterou si pixely načítají všechny obrázky
+     * @return PixelCache
+     */
+    public static PixelCache getShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Výchozí limit je čtvrtina haldy, lze ho přepsat vlastností analyzator.pixelCacheMB
+     * @return long
+     */
+    private static long defaultBudget()
+    {
+        Long megabytes = Long.getLong("analyzator.pixelCacheMB");
+        if (megabytes != null)
+        {
+            return megabytes * 1024 * 1024;
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Vrací pixely uložené pod daným klíčem, pokud chybí (nebo byly uvolněny), dekóduje je znovu
+     * @param key klíč obrázku (cesta k souboru)
+     * @param loader způsob dekódování obrázku
+     * @return BufferedImage
+     * @throws IOException
+     */
+    public BufferedImage get(String key, Loader loader) throws IOException
+    {
+        synchronized (this)
+        {
+            BufferedImage cached = entries.get(key);
+            if (cached != null)
+            {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        // dekódování běží mimo zámek, aby se obrázky mohly načítat paralelně
+        BufferedImage decoded = loader.load();
+        synchronized (this)
+        {
+            BufferedImage raced = entries.get(key);
+            if (raced != null)
+            {
+                return raced;
+            }
+            entries.put(key, decoded);
+            usedBytes += sizeOf(decoded);
+            evictOverBudget();
+        }
+        return decoded;
+    }
+
+    /**
+     * Vrací pixely uložené pod daným klíčem, pokud v paměti nejsou, vrací null a nic nedekóduje
+     * @param key klíč obrázku (cesta k souboru)
+     * @return BufferedImage
+     */
+    public synchronized BufferedImage peek(String key)
+    {
+        BufferedImage cached = entries.get(key);
+        if (cached != null)
+        {
+            hits++;
+        }
+        return cached;
+    }
+
+    /**
+     * Odebere obrázek z paměti
+     * @param key klíč obrázku
+     */
+    public synchronized void invalidate(String key)
+    {
+        BufferedImage removed = entries.remove(key);
+        if (removed != null)
+        {
+            usedBytes -= sizeOf(removed);
+        }
+    }
+
+    /**
+     * Odebere všechny obrázky z paměti
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Nastaví limit paměti a případně hned uvolní přebývající obrázky
+     * @param budgetBytes maximální počet bajtů dekódovaných pixelů
+     */
+    public synchronized void setBudget(long budgetBytes)
+    {
+        if (budgetBytes < 0)
+        {
+            throw new IllegalArgumentException("Budget must not be negative");
+        }
+        this.budgetBytes = budgetBytes;
+        evictOverBudget();
+    }
+
+    public synchronized long getBudget()
+    {
+        return budgetBytes;
+    }
+
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Uvolňuje nejdéle nepoužité obrázky, dokud je překročen limit, naposledy použitý obrázek vždy zůstává
+     */
+    private void evictOverBudget()
+    {
+        Iterator<Map.Entry<String, BufferedImage>> iterator = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && entries.size() > 1)
+        {
+            BufferedImage evicted = iterator.next().getValue();
+            iterator.remove();
+            usedBytes -= sizeOf(evicted);
+            evictions++;
+        }
+    }
+
+    /**
+     * Vrací velikost pixelových dat obrázku v bajtech
+     * @param image obrázek
+     * @return long
+     */
+    private static long sizeOf(BufferedImage image)
+    {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long bytesPerElement = DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        return (long) buffer.getSize() * buffer.getNumBanks() * bytesPerElement;
+    }
+}
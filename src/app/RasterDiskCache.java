@@ -0,0 +1,280 @@
+package app;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Trvalá paměť dekódovaných pixelů na disku (složka .cache). Klíčem je cesta, velikost a čas změny souboru, takže
+ * změněný soubor se dekóduje znovu a stará položka časem vypadne. Pixely se ukládají v rozložení rasteru obrázku
+ * (INT_RGB/ARGB, 3BYTE_BGR, 4BYTE_ABGR, BYTE_GRAY) a čtou se přes soubor namapovaný do paměti jedním hromadným
+ * kopírováním, opakované načtení nezměněného obrázku tak nestojí dekódování PNG/JPEG.
+ * Velikost složky je omezená, při překročení se mažou nejdéle nepoužité položky (viz DiskCacheDirectory).
+ * Ostatní typy obrázků (např. s paletou) se neukládají, aby výsledek nezávisel na tom, zda byl obrázek v paměti.
+ * @author Adam Petříček
+ */
+public final class RasterDiskCache {
+    private static final int MAGIC = 0x41524331;
+    private static final int HEADER_BYTES = 16;
+    private static final String SUFFIX = ".raster";
+
+    private static final RasterDiskCache shared = new RasterDiskCache(Path.of(".cache"), defaultBudget());
+
+    private final DiskCacheDirectory directory;
+    private long hits;
+    private long misses;
+
+    /**
+     * Konstruktor
+     * @param directory složka s uloženými pixely
+     * @param budgetBytes maximální velikost složky v bajtech, 0 paměť vypíná
+     */
+    public RasterDiskCache(Path directory, long budgetBytes)
+    {
+        this.directory = new DiskCacheDirectory(directory, "*" + SUFFIX, budgetBytes);
+    }
+
+    /**
+     * Vrací sdílenou instanci ve složce .cache
+     * @return RasterDiskCache
+     */
+    public static RasterDiskCache getShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Výchozí limit je 1 GiB, lze ho přepsat vlastností analyzator.diskCacheMB (0 paměť vypne)
+     * @return long
+     */
+    private static long defaultBudget()
+    {
+        return Long.getLong("analyzator.diskCacheMB", 1024) * 1024 * 1024;
+    }
+
+    /**
+     * Vrací pixely souboru z disku, pokud tam nejsou, dekóduje je a uloží
+     * @param source soubor obrázku
+     * @param loader způsob dekódování obrázku
+     * @return BufferedImage
+     * @throws IOException
+     */
+    public BufferedImage get(File source, PixelCache.Loader loader) throws IOException
+    {
+        if (getBudget() == 0)
+        {
+            return loader.load();
+        }
+        Path entry = entryFor(source);
+        BufferedImage cached = read(entry);
+        synchronized (this)
+        {
+            if (cached != null)
+            {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        BufferedImage decoded = loader.load();
+        write(entry, decoded);
+        return decoded;
+    }
+
+    /**
+     * Vrací pixely souboru z disku, pokud tam nejsou, vrací null a nic nedekóduje
+     * @param source soubor obrázku
+     * @return BufferedImage
+     */
+    public BufferedImage peek(File source)
+    {
+        if (getBudget() == 0)
+        {
+            return null;
+        }
+        BufferedImage cached = read(entryFor(source));
+        if (cached != null)
+        {
+            synchronized (this)
+            {
+                hits++;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Jméno položky je UUID z cesty, velikosti a času změny souboru
+     */
+    private Path entryFor(File source)
+    {
+        String key = source.getAbsolutePath() + '|' + source.length() + '|' + source.lastModified();
+        return directory.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+
+    /**
+     * Přečte položku, při chybě nebo poškozené položce vrací null (obrázek se pak dekóduje ze souboru)
+     */
+    private BufferedImage read(Path entry)
+    {
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ))
+        {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            if (mapped.remaining() < HEADER_BYTES || mapped.getInt() != MAGIC)
+            {
+                return null;
+            }
+            int type = mapped.getInt();
+            int width = mapped.getInt();
+            int height = mapped.getInt();
+            if (width < 1 || height < 1 || !isSupported(type))
+            {
+                return null;
+            }
+            BufferedImage image = new BufferedImage(width, height, type);
+            DataBuffer buffer = image.getRaster().getDataBuffer();
+            if (buffer instanceof DataBufferInt ints)
+            {
+                int[] data = ints.getData();
+                if (mapped.remaining() != 4L * data.length)
+                {
+                    return null;
+                }
+                mapped.asIntBuffer().get(data);
+            }
+            else
+            {
+                byte[] data = ((DataBufferByte) buffer).getData();
+                if (mapped.remaining() != data.length)
+                {
+                    return null;
+                }
+                mapped.get(data);
+            }
+            DiskCacheDirectory.touch(entry);
+            return image;
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            DiskCacheDirectory.deleteQuietly(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Uloží pixely přes dočasný soubor (DiskCacheDirectory.write). Chyba zápisu se ignoruje, paměť na disku je jen zrychlení
+     */
+    private void write(Path entry, BufferedImage image)
+    {
+        if (!isStorable(image))
+        {
+            return;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long bytes = buffer instanceof DataBufferInt ints ? 4L * ints.getData().length : ((DataBufferByte) buffer).getData().length;
+        directory.write(entry, HEADER_BYTES + bytes, channel -> {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + bytes);
+            mapped.order(ByteOrder.nativeOrder());
+            mapped.putInt(MAGIC).putInt(image.getType()).putInt(image.getWidth()).putInt(image.getHeight());
+            if (buffer instanceof DataBufferInt ints)
+            {
+                mapped.asIntBuffer().put(ints.getData());
+            }
+            else
+            {
+                mapped.put(((DataBufferByte) buffer).getData());
+            }
+        });
+    }
+
+    private static boolean isSupported(int type)
+    {
+        return type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+                || type == BufferedImage.TYPE_BYTE_GRAY;
+    }
+
+    /**
+     * Uložit jde jen raster běžného typu, který začíná na začátku pole a nemá mezery mezi řádky
+     */
+    private static boolean isStorable(BufferedImage image)
+    {
+        if (!isSupported(image.getType()))
+        {
+            return false;
+        }
+        Raster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel model = raster.getSampleModel();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || buffer.getNumBanks() != 1 || buffer.getOffset() != 0)
+        {
+            return false;
+        }
+        long elements = (long) image.getWidth() * image.getHeight();
+        if (model instanceof SinglePixelPackedSampleModel packed)
+        {
+            return packed.getScanlineStride() == image.getWidth() && buffer.getSize() == elements;
+        }
+        ComponentSampleModel component = (ComponentSampleModel) model;
+        return component.getScanlineStride() == image.getWidth() * component.getPixelStride()
+                && buffer.getSize() == elements * component.getPixelStride();
+    }
+
+    /**
+     * Smaže všechny uložené pixely
+     */
+    public void clear()
+    {
+        directory.clear();
+    }
+
+    /**
+     * Nastaví limit velikosti složky a případně hned smaže přebývající položky, 0 paměť vypne
+     * @param budgetBytes maximální velikost v bajtech
+     */
+    public void setBudget(long budgetBytes)
+    {
+        directory.setBudget(budgetBytes);
+    }
+
+    public long getBudget()
+    {
+        return directory.getBudget();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public long getEvictions()
+    {
+        return directory.getEvictions();
+    }
+}
@@ -2,16 +2,24 @@ package ui;
 
 import app.Image;
 import app.ImageCollection;
+import app.ImageScanner;
 import com.diogonunes.jcolor.Attribute;
 import com.drew.imaging.ImageProcessingException;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Tag;
 import com.drew.metadata.Metadata;
+import utils.ColorEstimate;
+import utils.ColorHistogram;
+import utils.FilterPipeline;
+import utils.ImageStatistics;
+import utils.MetadataFormat;
 import utils.SortingMethod;
 import utils.Helpers;
 
 import java.awt.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
 
@@ -94,7 +102,13 @@ public class App extends Component {
     private static void submenuOne()
     {
         int imagesLoaded = loadImages();
-        System.out.format("\nBylo načteno celkem %d obrázků", imagesLoaded);
+        System.out.format("\nV paměti je celkem %d obrázků, složka byla projita za %d ms (nové: %d, změněné: %d, odebrané: %d)",
+                imagesLoaded, imageCollection.getLoadDuration().toMillis(), imageCollection.getAddedFiles().size(),
+                imageCollection.getUpdatedFiles().size(), imageCollection.getRemovedFiles().size());
+        for (Map.Entry<String, String> failed : imageCollection.getFailedFiles().entrySet())
+        {
+            System.out.format("\nObrázek %s se nepodařilo načíst (%s)", failed.getKey(), failed.getValue());
+        }
         promptEnterKey();
     }
     private static void submenuTwo()
@@ -106,7 +120,7 @@ public class App extends Component {
             int iteration = 1;
             for(Image currentImage : images)
             {
-                System.out.format("%d. %s\n", iteration, currentImage.getName());
+                System.out.format("%d. %s (načteno v %s)\n", iteration, currentImage.getName(), currentImage.getChanged());
                 iteration += 1;
             }
 
@@ -166,10 +180,10 @@ public class App extends Component {
     }
     private static void submenuFour()
     {
-        System.out.println("\n\n\nakce pro všechny obrázky\n=====================\n1 = zobrazit histogram barev v obrázcích\n2 = zobrazit metadata obrázků\n3 = vygenerovat metadata do txt souboru\n4 = vygenerovat černobílé obrázky\n5 = vygenerovat rozmazané obrázky\n6 = vygenerovat obrázky s invertovanými barvami\n7 = zpět\n");
+        System.out.println("\n\n\nakce pro všechny obrázky\n=====================\n1 = zobrazit histogram barev v obrázcích\n2 = zobrazit metadata obrázků\n3 = vygenerovat metadata do souboru (text, jsonl nebo csv)\n4 = vygenerovat černobílé obrázky\n5 = vygenerovat rozmazané obrázky\n6 = vygenerovat obrázky s invertovanými barvami\n7 = zobrazit rychlý odhad histogramu barev\n8 = použít řetězec filtrů\n9 = zpět\n");
         String input = sc.next();
 
-        if(!validateInput(input, 1, 7))
+        if(!validateInput(input, 1, 9))
         {
             System.out.println("\nNeznámá instrukce");
             promptEnterKey();
@@ -180,13 +194,13 @@ public class App extends Component {
         switch (validInput) {
             case 1 ->
             { // histogram
-                int totalPixels = imageCollection.getTotalPixelsAll();
+                long totalPixels = imageCollection.getTotalPixelsAll();
                 System.out.format("\n\nHistogram barev z %d obrázků:\nObrázky mají dohromady %spx\n\n", imageCollection.imagesLoaded, Helpers.makeNumberReadable(totalPixels));
-                Map<String, Integer> calculatedValues = imageCollection.getMostCommonColorsAll();
-                for (Map.Entry<String, Integer> entry : calculatedValues.entrySet())
+                Map<String, Long> calculatedValues = imageCollection.getMostCommonColorsAll();
+                for (Map.Entry<String, Long> entry : calculatedValues.entrySet())
                 {
                     String color = entry.getKey();
-                    int pixels = entry.getValue();
+                    long pixels = entry.getValue();
 
                     double percent = (double)pixels/((double)(totalPixels)/100);
 
@@ -200,7 +214,7 @@ public class App extends Component {
             case 2 -> { // metadata do console
                 try
                 {
-                    System.out.println(imageCollection.getMetadataAll());
+                    printMetadataAll();
                 }
                 catch(IOException | ImageProcessingException exception)
                 {
@@ -208,14 +222,19 @@ public class App extends Component {
                 }
                 promptEnterKey();
             }
-            case 3 -> { // metadata do txt
-                try
+            case 3 -> { // metadata do souboru
+                MetadataFormat format = readMetadataFormat();
+                if (format != null)
                 {
-                    imageCollection.saveMetadataAll();
-                }
-                catch(IOException | ImageProcessingException exception)
-                {
-                    System.out.println("Error při generování textového souboru");
+                    try
+                    {
+                        File result = imageCollection.saveMetadataAll(format);
+                        System.out.println("Metadata byla uložena do souboru " + result.getPath());
+                    }
+                    catch(IOException | ImageProcessingException exception)
+                    {
+                        System.out.println("Error při generování souboru s metadaty");
+                    }
                 }
                 promptEnterKey();
             }
@@ -255,6 +274,27 @@ public class App extends Component {
                 }
                 promptEnterKey();
             }
+            case 7 -> { // odhad histogramu
+                System.out.format("\n\nOdhad histogramu barev z %d obrázků:\n\n", imageCollection.imagesLoaded);
+                printColorEstimates(imageCollection.getMostCommonColorsApproxAll());
+                promptEnterKey();
+            }
+            case 8 -> { // retezec filtru
+                FilterPipeline pipeline = readFilterPipeline();
+                if (pipeline != null)
+                {
+                    try
+                    {
+                        imageCollection.copyAndApplyAll(pipeline);
+                        System.out.println("Obrázky s řetězcem filtrů byly úspěšně vygenerovány a uloženy");
+                    }
+                    catch(IOException exception)
+                    {
+                        System.out.println("Při použití řetězce filtrů se vyskytla chyba");
+                    }
+                }
+                promptEnterKey();
+            }
         }
     }
     private static void submenuFive()
@@ -280,10 +320,10 @@ public class App extends Component {
         int validInput = Integer.parseInt(input);
         Image selectedImage = imageCollection.getImage(validInput-1);
 
-        System.out.println("\n\n\nakce pro jeden obrázek\n=====================\n1 = zobrazit histogram barev v obrázku\n2 = zobrazit metadata obrázku\n3 = vygenerovat metadata do txt souboru\n4 = vygenerovat černobílý obrázek\n5 = vygenerovat rozmazaný obrázek\n6 = vygenerovat obrázek s invertovanými barvami\n7 = zpět\n");
+        System.out.println("\n\n\nakce pro jeden obrázek\n=====================\n1 = zobrazit histogram barev v obrázku\n2 = zobrazit metadata obrázku\n3 = vygenerovat metadata do txt souboru\n4 = vygenerovat černobílý obrázek\n5 = vygenerovat rozmazaný obrázek\n6 = vygenerovat obrázek s invertovanými barvami\n7 = zobrazit rychlý odhad histogramu barev\n8 = použít řetězec filtrů\n9 = zpět\n");
         String input2 = sc.next();
 
-        if(!validateInput(input2, 1, 7))
+        if(!validateInput(input2, 1, 9))
         {
             System.out.println("\nNeznámá instrukce");
             promptEnterKey();
@@ -294,13 +334,16 @@ public class App extends Component {
         switch (validInput2) {
             case 1 ->
             { // histogram
-                int totalPixels = selectedImage.getTotalPixels();
-                System.out.format("\n\nHistogram barev z obrázku:\nObrázek má %spx\n\n", Helpers.makeNumberReadable(totalPixels));
-                Map<String, Integer> calculatedValues = selectedImage.getMostCommonColors();
-                for (Map.Entry<String, Integer> entry : calculatedValues.entrySet())
+                long totalPixels = selectedImage.getTotalPixels();
+                ImageStatistics statistics = selectedImage.getStatistics();
+                System.out.format("\n\nHistogram barev z obrázku:\nObrázek má %spx, %s různých barev, průměrná barva je %s\n\n",
+                        Helpers.makeNumberReadable(totalPixels), Helpers.makeNumberReadable(statistics.getDistinctColors()),
+                        ColorHistogram.toHex(statistics.getMeanColor()));
+                Map<String, Long> calculatedValues = statistics.getMostCommonColors();
+                for (Map.Entry<String, Long> entry : calculatedValues.entrySet())
                 {
                     String color = entry.getKey();
-                    int pixels = entry.getValue();
+                    long pixels = entry.getValue();
 
                     double percent = (double)pixels/((double)(totalPixels)/100);
 
@@ -314,7 +357,7 @@ public class App extends Component {
             case 2 -> { // metadata do console
                 try
                 {
-                    System.out.println(imageCollection.getMetadataAll());
+                    printMetadataAll();
                 }
                 catch(IOException | ImageProcessingException exception)
                 {
@@ -372,6 +415,75 @@ public class App extends Component {
                 System.out.println("Invertovaný obrázek byl úspěšně vygenerován a uložen");
                 promptEnterKey();
             }
+            case 7 -> { // odhad histogramu
+                System.out.println("\n\nOdhad histogramu barev z obrázku:\n");
+                printColorEstimates(selectedImage.getMostCommonColorsApprox());
+                promptEnterKey();
+            }
+            case 8 -> { // retezec filtru
+                FilterPipeline pipeline = readFilterPipeline();
+                if (pipeline != null)
+                {
+                    try
+                    {
+                        selectedImage.copyAndApply(pipeline);
+                        System.out.println("Obrázek s řetězcem filtrů byl úspěšně vygenerován a uložen");
+                    }
+                    catch(IOException exception)
+                    {
+                        System.out.println("Při použití řetězce filtrů se vyskytla chyba");
+                    }
+                }
+                promptEnterKey();
+            }
+        }
+    }
+
+    private static FilterPipeline readFilterPipeline()
+    {
+        System.out.println("Zadej řetězec filtrů oddělených čárkou (grey, invert, blur nebo blur:poloměr, brightness:posun, contrast:násobek,\n"
+                + "gamma:gama, levels:černá-bílá, threshold:práh, posterize:úrovně, sharpen, box:poloměr, sobel, laplacian), např. grey,blur:8,invert nebo levels:10-240,gamma:1.2:");
+        String input = sc.next();
+        if(!FilterPipeline.isValid(input))
+        {
+            System.out.println("\nNeplatný řetězec filtrů");
+            return null;
+        }
+        return FilterPipeline.parse(input);
+    }
+
+    private static MetadataFormat readMetadataFormat()
+    {
+        System.out.println("Zadej formát souboru (text, jsonl nebo csv):");
+        String input = sc.next();
+        try
+        {
+            return MetadataFormat.valueOf(input.toLowerCase());
+        }
+        catch (IllegalArgumentException ex)
+        {
+            System.out.println("\nNeznámý formát");
+            return null;
+        }
+    }
+
+    private static void printMetadataAll() throws IOException, ImageProcessingException
+    {
+        // System.out se nezavírá, writer se jen vyprázdní
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        imageCollection.getMetadataAll(out);
+        out.write('\n');
+        out.flush();
+    }
+
+    private static void printColorEstimates(List<ColorEstimate> estimates)
+    {
+        for (ColorEstimate estimate : estimates)
+        {
+            Color converted = Color.decode(estimate.getColor());
+            Attribute bkgColor = BACK_COLOR(converted.getRed(), converted.getGreen(), converted.getBlue());
+            System.out.print(colorize("           ", bkgColor));
+            System.out.format(" %s - odhadem %s pixelů (%.2f%% z celkového počtu, 95%% interval %.2f%% - %.2f%%)\n", estimate.getColor(), Helpers.makeNumberReadable(estimate.getEstimatedPixels()), estimate.getPercent(), estimate.getLowerPercent(), estimate.getUpperPercent());
         }
     }
 
@@ -401,17 +513,18 @@ public class App extends Component {
 
     private static int loadImages()
     {
-        List<String> availableExtensions = Arrays.asList("png", "jpg", "jpeg");
-        File f = new File("img/");
-        File [] files = f.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name)
-            {
-                String[] splittedString = name.split("\\.");
-                String extension = splittedString[splittedString.length-1];
-                return availableExtensions.contains(extension);
-            }
-        });
-        return imageCollection.fillCollection(files);
+        // obrázky se hledají v celé složce img/ i v podsložkách, podle obsahu souboru, ne podle přípony
+        ImageScanner scanner = new ImageScanner(Path.of("img"))
+                .setMaxDepth(Integer.getInteger("analyzator.scanDepth", Integer.MAX_VALUE))
+                .setGlob(System.getProperty("analyzator.scanGlob"));
+        try
+        {
+            return imageCollection.fillCollection(scanner);
+        }
+        catch (IOException ex)
+        {
+            System.out.println("\nSložku img/ se nepodařilo projít");
+            return imageCollection.imagesLoaded;
+        }
     }
 }
@@ -0,0 +1,9 @@
+package utils;
+
+/**
+ * Algoritmus, kterým se počítá Gaussovo rozmazání
+ * @author Adam Petříček
+ */
+public enum BlurAlgorithm {
+    auto, direct, box, fft
+}
@@ -0,0 +1,136 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Odhad zastoupení barvy spočítaný ze vzorku pixelů, včetně 95% intervalu spolehlivosti (Wilsonův interval)
+ * @author Adam Petříček
+ */
+public final class ColorEstimate {
+    /**
+     * Přibližný počet pixelů, který se při odhadu vzorkuje
+     */
+    public static final int SAMPLE_SIZE = 1 << 18;
+    private static final double Z_95 = 1.96;
+
+    private final String color;
+    private final long sampledPixels;
+    private final long estimatedPixels;
+    private final double percent;
+    private final double lowerPercent;
+    private final double upperPercent;
+
+    /**
+     * Konstruktor, odhad se spočítá z počtu výskytů ve vzorku
+     * @param rgb barva
+     * @param sampledPixels počet výskytů barvy ve vzorku
+     * @param sampleSize velikost vzorku
+     * @param totalPixels celkový počet pixelů, na který se odhad přepočítává
+     */
+    public ColorEstimate(int rgb, long sampledPixels, long sampleSize, long totalPixels)
+    {
+        if (sampleSize <= 0)
+        {
+            throw new IllegalArgumentException("Sample must not be empty");
+        }
+        this.color = ColorHistogram.toHex(rgb);
+        this.sampledPixels = sampledPixels;
+
+        double p = (double) sampledPixels / sampleSize;
+        double z2 = Z_95 * Z_95;
+        double denominator = 1 + z2 / sampleSize;
+        double centre = (p + z2 / (2.0 * sampleSize)) / denominator;
+        double margin = Z_95 * Math.sqrt(p * (1 - p) / sampleSize + z2 / (4.0 * sampleSize * sampleSize)) / denominator;
+
+        this.estimatedPixels = Math.round(p * totalPixels);
+        this.percent = p * 100;
+        this.lowerPercent = Math.max(0, centre - margin) * 100;
+        this.upperPercent = Math.min(1, centre + margin) * 100;
+    }
+
+    /**
+     * Vrací krok vzorkování v obou směrech tak, aby se z daného počtu pixelů vzalo zhruba SAMPLE_SIZE vzorků
+     * @param totalPixels celkový počet pixelů
+     * @return int
+     */
+    public static int samplingStep(long totalPixels)
+    {
+        return Math.max(1, (int) Math.sqrt((double) totalPixels / SAMPLE_SIZE));
+    }
+
+    /**
+     * Vytvoří odhady pro k nejčastějších barev histogramu vzorku
+     * @param sample histogram vzorku
+     * @param totalPixels celkový počet pixelů, na který se odhad přepočítává
+     * @param k počet barev
+     * @return List<ColorEstimate>
+     */
+    public static List<ColorEstimate> fromHistogram(ColorHistogram sample, long totalPixels, int k)
+    {
+        List<ColorEstimate> estimates = new ArrayList<>(k);
+        if (sample.getTotal() == 0)
+        {
+            return estimates;
+        }
+        for (long entry : sample.top(k))
+        {
+            estimates.add(new ColorEstimate(ColorHistogram.rgbOf(entry), ColorHistogram.countOf(entry), sample.getTotal(), totalPixels));
+        }
+        return estimates;
+    }
+
+    /**
+     * Vrací barvu v hex zápisu
+     * @return String
+     */
+    public String getColor()
+    {
+        return color;
+    }
+
+    /**
+     * Vrací počet výskytů barvy ve vzorku
+     * @return long
+     */
+    public long getSampledPixels()
+    {
+        return sampledPixels;
+    }
+
+    /**
+     * Vrací odhadnutý počet pixelů barvy v celém obrázku
+     * @return long
+     */
+    public long getEstimatedPixels()
+    {
+        return estimatedPixels;
+    }
+
+    /**
+     * Vrací odhadnuté procentuální zastoupení barvy
+     * @return double
+     */
+    public double getPercent()
+    {
+        return percent;
+    }
+
+    /**
+     * Vrací dolní mez 95% intervalu spolehlivosti v procentech
+     * @return double
+     */
+    public double getLowerPercent()
+    {
+        return lowerPercent;
+    }
+
+    /**
+     * Vrací horní mez 95% intervalu spolehlivosti v procentech
+     * @return double
+     */
+    public double getUpperPercent()
+    {
+        return upperPercent;
+    }
+}
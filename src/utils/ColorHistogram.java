@@ -0,0 +1,495 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Histogram barev indexovaný 24bitovou hodnotou RGB. Dokud je barev málo, používá primitivní hashovací tabulku
+ * s otevřeným adresováním, při velkém počtu různých barev přechází na husté pole 2^24 čítačů. Čítače jsou long, počet
+ * výskytů jedné barvy tak nepřeteče ani u obrázků a kolekcí s více než 2^31 pixely.
+ * @author Adam Petříček
+ */
+public final class ColorHistogram {
+    /**
+     * Počet barev, které se vypisují v histogramu
+     */
+    public static final int TOP_COLORS = 15;
+
+    private static final int COLORS = 1 << 24;
+    private static final int MAX_SPARSE_CAPACITY = 1 << 22;
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+    private long[] dense;
+    private long total;
+
+    /**
+     * Rozhraní pro procházení barev histogramu
+     */
+    @FunctionalInterface
+    public interface ColorConsumer
+    {
+        void accept(int rgb, long count);
+    }
+
+    /**
+     * Konstruktor prázdného histogramu
+     */
+    public ColorHistogram()
+    {
+        keys = new int[1 << 10];
+        values = new long[1 << 10];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Přičte jeden výskyt barvy, kanál alfa se ignoruje
+     * @param argb barva pixelu
+     */
+    public void add(int argb)
+    {
+        add(argb, 1);
+    }
+
+    /**
+     * Přičte daný počet výskytů barvy, kanál alfa se ignoruje
+     * @param argb barva pixelu
+     * @param count počet výskytů
+     */
+    public void add(int argb, long count)
+    {
+        int rgb = argb & 0x00FFFFFF;
+        total += count;
+        if (dense != null)
+        {
+            dense[rgb] += count;
+            return;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(rgb) & mask;
+        while (keys[slot] != EMPTY)
+        {
+            if (keys[slot] == rgb)
+            {
+                values[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = rgb;
+        values[slot] = count;
+        size++;
+        if (size * 2 > keys.length)
+        {
+            grow();
+        }
+    }
+
+    /**
+     * Přičte všechny pixely z pole (např. jeden řádek obrázku)
+     * @param argb pole pixelů
+     * @param offset index prvního pixelu
+     * @param length počet pixelů
+     */
+    public void addAll(int[] argb, int offset, int length)
+    {
+        for (int i = offset; i < offset + length; i++)
+        {
+            add(argb[i]);
+        }
+    }
+
+    /**
+     * Přičte všechny pixely obrázku. Velký obrázek se počítá po pásech řádků souběžně (viz RowBands), každý pás do
+     * vlastního dílčího histogramu a ty se nakonec sloučí. Sloučení hustých histogramů stojí průchod přes 2^24 čítačů,
+     * pásů je proto nejvýš zhruba čtyřikrát víc než vláken
+     * @param pixels pixely obrázku
+     */
+    public void addAll(PixelAccess pixels)
+    {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        if (!RowBands.isSplit(width, height))
+        {
+            addRows(pixels, 0, height);
+            return;
+        }
+        long bandPixels = Math.max(RowBands.TILE_PIXELS, (long) width * height / (4L * RowBands.getParallelism()));
+        int bandRows = (int) Math.max(1, bandPixels / width);
+        BandTask task = new BandTask(pixels, bandRows, 0, height);
+        GaussianBlur.run(task);
+        merge(task.join());
+    }
+
+    private void addRows(PixelAccess pixels, int from, int to)
+    {
+        int width = pixels.getWidth();
+        int[] row = new int[width];
+        for (int y = from; y < to; y++)
+        {
+            pixels.getRow(y, row);
+            addAll(row, 0, width);
+        }
+    }
+
+    /**
+     * Histogram pásu řádků, pás delší než bandRows se dělí na poloviny
+     */
+    private static final class BandTask extends RecursiveTask<ColorHistogram>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final PixelAccess pixels;
+        private final int bandRows;
+        private final int from;
+        private final int to;
+
+        BandTask(PixelAccess pixels, int bandRows, int from, int to)
+        {
+            this.pixels = pixels;
+            this.bandRows = bandRows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ColorHistogram compute()
+        {
+            if (to - from > bandRows)
+            {
+                int middle = (from + to) >>> 1;
+                BandTask first = new BandTask(pixels, bandRows, from, middle);
+                first.fork();
+                ColorHistogram second = new BandTask(pixels, bandRows, middle, to).compute();
+                ColorHistogram result = first.join();
+                // menší histogram se přičítá do většího (hustého)
+                if (second.dense != null && result.dense == null)
+                {
+                    second.merge(result);
+                    return second;
+                }
+                result.merge(second);
+                return result;
+            }
+            ColorHistogram histogram = new ColorHistogram();
+            histogram.addRows(pixels, from, to);
+            return histogram;
+        }
+    }
+
+    /**
+     * Přičte do histogramu všechny hodnoty z jiného histogramu
+     * @param other jiný histogram
+     */
+    public void merge(ColorHistogram other)
+    {
+        if (other.dense != null && dense != null)
+        {
+            for (int rgb = 0; rgb < COLORS; rgb++)
+            {
+                dense[rgb] += other.dense[rgb];
+            }
+            total += other.total;
+            return;
+        }
+        if (other.dense != null)
+        {
+            for (int rgb = 0; rgb < COLORS; rgb++)
+            {
+                if (other.dense[rgb] != 0)
+                {
+                    add(rgb, other.dense[rgb]);
+                }
+            }
+            return;
+        }
+        for (int slot = 0; slot < other.keys.length; slot++)
+        {
+            if (other.keys[slot] != EMPTY)
+            {
+                add(other.keys[slot], other.values[slot]);
+            }
+        }
+    }
+
+    /**
+     * Projde všechny barvy s nenulovým počtem výskytů, pořadí není určené
+     * @param action akce volaná pro každou barvu
+     */
+    public void forEach(ColorConsumer action)
+    {
+        if (dense != null)
+        {
+            for (int rgb = 0; rgb < COLORS; rgb++)
+            {
+                if (dense[rgb] != 0)
+                {
+                    action.accept(rgb, dense[rgb]);
+                }
+            }
+            return;
+        }
+        for (int slot = 0; slot < keys.length; slot++)
+        {
+            if (keys[slot] != EMPTY)
+            {
+                action.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    /**
+     * Vrací počet výskytů barvy
+     * @param argb barva
+     * @return long
+     */
+    public long getCount(int argb)
+    {
+        int rgb = argb & 0x00FFFFFF;
+        if (dense != null)
+        {
+            return dense[rgb];
+        }
+        int mask = keys.length - 1;
+        int slot = hash(rgb) & mask;
+        while (keys[slot] != EMPTY)
+        {
+            if (keys[slot] == rgb)
+            {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Vrací počet různých barev
+     * @return int
+     */
+    public int getDistinctColors()
+    {
+        if (dense != null)
+        {
+            int distinct = 0;
+            for (long count : dense)
+            {
+                if (count != 0)
+                {
+                    distinct++;
+                }
+            }
+            return distinct;
+        }
+        return size;
+    }
+
+    /**
+     * Vrací celkový počet započtených pixelů
+     * @return long
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * Vrací k nejčastějších barev seřazených sestupně podle počtu, každá hodnota je zabalena jako (počet << 24 | rgb).
+     * Používá omezenou haldu velikosti k, takže se neřadí všechny barvy.
+     * @param k počet barev
+     * @return long[]
+     */
+    public long[] top(int k)
+    {
+        long[] heap = new long[k];
+        int heapSize = 0;
+        if (dense != null)
+        {
+            for (int rgb = 0; rgb < COLORS; rgb++)
+            {
+                if (dense[rgb] != 0)
+                {
+                    heapSize = offer(heap, heapSize, pack(dense[rgb], rgb));
+                }
+            }
+        }
+        else
+        {
+            for (int slot = 0; slot < keys.length; slot++)
+            {
+                if (keys[slot] != EMPTY)
+                {
+                    heapSize = offer(heap, heapSize, pack(values[slot], keys[slot]));
+                }
+            }
+        }
+        long[] result = Arrays.copyOf(heap, heapSize);
+        Arrays.sort(result);
+        for (int i = 0, j = result.length - 1; i < j; i++, j--)
+        {
+            long swap = result[i];
+            result[i] = result[j];
+            result[j] = swap;
+        }
+        return result;
+    }
+
+    /**
+     * Vrací k nejčastějších barev jako mapu hex kódu barvy a počtu výskytů, seřazenou sestupně
+     * @param k počet barev
+     * @return Map<String, Long>
+     */
+    public Map<String, Long> topAsMap(int k)
+    {
+        return toMap(top(k));
+    }
+
+    /**
+     * Převede zabalené hodnoty z metody top() na mapu hex kódu barvy a počtu výskytů se zachovaným pořadím
+     * @param entries zabalené hodnoty
+     * @return Map<String, Long>
+     */
+    public static Map<String, Long> toMap(long[] entries)
+    {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (long entry : entries)
+        {
+            result.put(toHex(rgbOf(entry)), countOf(entry));
+        }
+        return result;
+    }
+
+    /**
+     * Vrací barvu ze zabalené hodnoty z metody top()
+     * @param entry zabalená hodnota
+     * @return int
+     */
+    public static int rgbOf(long entry)
+    {
+        return (int) (entry & 0x00FFFFFF);
+    }
+
+    /**
+     * Vrací počet výskytů ze zabalené hodnoty z metody top()
+     * @param entry zabalená hodnota
+     * @return long
+     */
+    public static long countOf(long entry)
+    {
+        return entry >>> 24;
+    }
+
+    /**
+     * Převede barvu na hex zápis ve tvaru #rrggbb
+     * @param rgb barva
+     * @return String
+     */
+    public static String toHex(int rgb)
+    {
+        return String.format("#%06x", rgb & 0x00FFFFFF);
+    }
+
+    private static long pack(long count, int rgb)
+    {
+        return (count << 24) | rgb;
+    }
+
+    private static int hash(int rgb)
+    {
+        int h = rgb * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Vloží hodnotu do min-haldy omezené velikosti, při plné haldě nahradí nejmenší prvek
+     * @return nová velikost haldy
+     */
+    private static int offer(long[] heap, int heapSize, long value)
+    {
+        if (heapSize < heap.length)
+        {
+            int i = heapSize;
+            heap[i] = value;
+            while (i > 0 && heap[(i - 1) / 2] > heap[i])
+            {
+                long swap = heap[i];
+                heap[i] = heap[(i - 1) / 2];
+                heap[(i - 1) / 2] = swap;
+                i = (i - 1) / 2;
+            }
+            return heapSize + 1;
+        }
+        if (heap.length == 0 || value <= heap[0])
+        {
+            return heapSize;
+        }
+        heap[0] = value;
+        int i = 0;
+        while (true)
+        {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && heap[left] < heap[smallest])
+            {
+                smallest = left;
+            }
+            if (right < heapSize && heap[right] < heap[smallest])
+            {
+                smallest = right;
+            }
+            if (smallest == i)
+            {
+                return heapSize;
+            }
+            long swap = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = swap;
+            i = smallest;
+        }
+    }
+
+    /**
+     * Zdvojnásobí hashovací tabulku, po překročení limitu přejde na husté pole
+     */
+    private void grow()
+    {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        if (oldKeys.length * 2 > MAX_SPARSE_CAPACITY)
+        {
+            dense = new long[COLORS];
+            for (int slot = 0; slot < oldKeys.length; slot++)
+            {
+                if (oldKeys[slot] != EMPTY)
+                {
+                    dense[oldKeys[slot]] = oldValues[slot];
+                }
+            }
+            keys = null;
+            values = null;
+            return;
+        }
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        int mask = keys.length - 1;
+        for (int slot = 0; slot < oldKeys.length; slot++)
+        {
+            if (oldKeys[slot] != EMPTY)
+            {
+                int target = hash(oldKeys[slot]) & mask;
+                while (keys[target] != EMPTY)
+                {
+                    target = (target + 1) & mask;
+                }
+                keys[target] = oldKeys[slot];
+                values[target] = oldValues[slot];
+            }
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Obecná konvoluce rovin pixelů s libovolným jádrem (ConvolutionKernel). Separabilní jádro se počítá dvěma jednorozměrnými
+ * průchody, každý průchod podle počtu vah a délky řádku přímo, nebo přes FFT (GaussianBlurService). Neseparabilní jádra
+ * se počítají přímo ve dvou rozměrech po dlaždicích. Mimo obrázek se opakuje krajní pixel, součet vah se tedy zachová
+ * i u okrajů. Práce se dělí mezi vlákna stejného poolu jako Gaussovo rozmazání (GaussianBlur.setParallelism).
+ * @author Adam Petříček
+ */
+public final class Convolution {
+    private static final int BLOCK = 16;
+    private static final long SPLIT_THRESHOLD = 1 << 16;
+    private static final int FFT_FACTOR = 4;
+
+    private Convolution() {}
+
+    /**
+     * Filtr, který zpracuje jeden řádek nebo sloupec na místě
+     */
+    private interface LineFilter
+    {
+        void apply(double[] line);
+
+        default void applyPair(double[] first, double[] second)
+        {
+            apply(first);
+            apply(second);
+        }
+    }
+
+    /**
+     * Použije jádro na barvy obrázku v lineárním světle (stejně jako Gaussovo rozmazání), obrázek se přepíše výsledkem
+     * @param image obrázek
+     * @param kernel jádro
+     */
+    public static void apply(BufferedImage image, ConvolutionKernel kernel)
+    {
+        apply(image, kernel, image.getHeight());
+    }
+
+    /**
+     * Použije jádro na pás obrázku, průchod po sloupcích se počítá stejným způsobem (přímo nebo přes FFT) jako
+     * u celého obrázku dané výšky
+     * @param image pás obrázku
+     * @param kernel jádro
+     * @param imageHeight výška celého obrázku
+     */
+    public static void apply(BufferedImage image, ConvolutionKernel kernel, int imageHeight)
+    {
+        LinearPlanes planes = LinearPlanes.fromImage(image);
+        convolve(planes.getPlanes(), planes.getWidth(), planes.getHeight(), kernel, imageHeight);
+        planes.toImage(image);
+    }
+
+    /**
+     * Nahradí obrázek černobílou mapou hran. Hrany se hledají v průměru složek R, G, B (jako černobílý filtr),
+     * u Sobelova operátoru je výsledkem velikost gradientu, u Laplaceova absolutní hodnota odezvy, obojí oříznuté na 255.
+     * Výsledek je neprůhledný
+     * @param image obrázek
+     * @param operator operátor
+     */
+    public static void detectEdges(BufferedImage image, EdgeOperator operator)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelAccess pixels = PixelAccess.of(image);
+        float[] luma = new float[width * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            pixels.getRow(y, row);
+            for (int x = 0; x < width; x++)
+            {
+                int argb = row[x];
+                luma[y * width + x] = (((argb >>> 16) & 0xFF) + ((argb >>> 8) & 0xFF) + (argb & 0xFF)) / 3f;
+            }
+        }
+
+        float[] edges;
+        if (operator == EdgeOperator.sobel)
+        {
+            float[] gradientX = luma.clone();
+            convolve(new float[][] {gradientX}, width, height, ConvolutionKernel.sobelX());
+            convolve(new float[][] {luma}, width, height, ConvolutionKernel.sobelY());
+            for (int i = 0; i < luma.length; i++)
+            {
+                luma[i] = (float) Math.sqrt(gradientX[i] * gradientX[i] + luma[i] * luma[i]);
+            }
+            edges = luma;
+        }
+        else
+        {
+            convolve(new float[][] {luma}, width, height, ConvolutionKernel.laplacian());
+            edges = luma;
+        }
+
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int value = Math.min(255, Math.round(Math.abs(edges[y * width + x])));
+                row[x] = 0xFF000000 | value << 16 | value << 8 | value;
+            }
+            pixels.setRow(y, row);
+        }
+    }
+
+    /**
+     * Provede konvoluci všech rovin na místě
+     * @param planes roviny pixelů uložené po řádcích
+     * @param width šířka
+     * @param height výška
+     * @param kernel jádro
+     */
+    public static void convolve(float[][] planes, int width, int height, ConvolutionKernel kernel)
+    {
+        convolve(planes, width, height, kernel, height);
+    }
+
+    /**
+     * Provede konvoluci všech rovin pásu obrázku na místě, o výpočtu průchodu po sloupcích rozhoduje výška celého obrázku
+     * @param planes roviny pixelů uložené po řádcích
+     * @param width šířka
+     * @param height výška pásu
+     * @param kernel jádro
+     * @param imageHeight výška celého obrázku
+     */
+    public static void convolve(float[][] planes, int width, int height, ConvolutionKernel kernel, int imageHeight)
+    {
+        if (kernel.isSeparable())
+        {
+            double[] horizontal = kernel.getRow();
+            double[] vertical = kernel.getColumn();
+            if (horizontal.length > 1)
+            {
+                GaussianBlur.run(new PassTask(planes, width, height, horizontal, fftFor(horizontal, width, width), true, 0, height));
+            }
+            if (vertical.length > 1 || vertical[0] != 1)
+            {
+                GaussianBlur.run(new PassTask(planes, width, height, vertical, fftFor(vertical, imageHeight, height), false, 0, width));
+            }
+            return;
+        }
+        float[][] sources = new float[planes.length][];
+        for (int i = 0; i < planes.length; i++)
+        {
+            sources[i] = planes[i].clone();
+        }
+        GaussianBlur.run(new TileTask(sources, planes, width, height, kernel, 0, 0, width, height));
+    }
+
+    /**
+     * Vrací sdílenou FFT konvoluci, pokud se pro daný počet vah a délku řádku celého obrázku vyplatí víc než přímý výpočet,
+     * jinak null. Přímý výpočet stojí počet vah operací na vzorek, FFT zhruba násobek log2 délky transformace
+     * @param taps váhy
+     * @param fullLength délka řádku nebo sloupce celého obrázku, podle ní se volí způsob výpočtu
+     * @param lineLength délka skutečně počítaného řádku (u pásu kratší)
+     */
+    private static GaussianBlurService fftFor(double[] taps, int fullLength, int lineLength)
+    {
+        int levels = 32 - Integer.numberOfLeadingZeros(fullLength + taps.length - 2);
+        if (taps.length <= FFT_FACTOR * levels)
+        {
+            return null;
+        }
+        return GaussianBlurService.forWeights(taps, lineLength + taps.length - 1);
+    }
+
+    /**
+     * Jeden průchod separabilního jádra (po řádcích nebo po sloupcích) nad rozsahem řádků/sloupců, velké rozsahy se dělí
+     * na poloviny. Sloupce se kopírují po blocích BLOCK sousedních sloupců, stejně jako u Gaussova rozmazání
+     */
+    private static final class PassTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] planes;
+        private final int width;
+        private final int height;
+        private final double[] taps;
+        private final GaussianBlurService fft;
+        private final boolean horizontal;
+        private final int from;
+        private final int to;
+
+        PassTask(float[][] planes, int width, int height, double[] taps, GaussianBlurService fft, boolean horizontal, int from, int to)
+        {
+            this.planes = planes;
+            this.width = width;
+            this.height = height;
+            this.taps = taps;
+            this.fft = fft;
+            this.horizontal = horizontal;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int lineLength = horizontal ? width : height;
+            if ((long) (to - from) * lineLength > SPLIT_THRESHOLD && to - from > BLOCK)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PassTask(planes, width, height, taps, fft, horizontal, from, middle),
+                        new PassTask(planes, width, height, taps, fft, horizontal, middle, to));
+                return;
+            }
+            LineFilter filter = fft == null ? directFilter(taps, lineLength) : fftFilter(fft, taps.length / 2, lineLength);
+            double[][] block = new double[BLOCK][lineLength];
+            for (float[] plane : planes)
+            {
+                for (int start = from; start < to; start += BLOCK)
+                {
+                    int count = Math.min(BLOCK, to - start);
+                    gather(plane, start, count, block);
+                    int l = 0;
+                    for (; l + 1 < count; l += 2)
+                        filter.applyPair(block[l], block[l + 1]);
+                    if (l < count)
+                        filter.apply(block[l]);
+                    scatter(plane, start, count, block);
+                }
+            }
+        }
+
+        private void gather(float[] plane, int start, int count, double[][] block)
+        {
+            if (horizontal)
+            {
+                for (int l = 0; l < count; l++)
+                {
+                    int offset = (start + l) * width;
+                    double[] line = block[l];
+                    for (int x = 0; x < width; x++)
+                        line[x] = plane[offset + x];
+                }
+            }
+            else
+            {
+                for (int y = 0; y < height; y++)
+                {
+                    int offset = y * width + start;
+                    for (int l = 0; l < count; l++)
+                        block[l][y] = plane[offset + l];
+                }
+            }
+        }
+
+        private void scatter(float[] plane, int start, int count, double[][] block)
+        {
+            if (horizontal)
+            {
+                for (int l = 0; l < count; l++)
+                {
+                    int offset = (start + l) * width;
+                    double[] line = block[l];
+                    for (int x = 0; x < width; x++)
+                        plane[offset + x] = (float) line[x];
+                }
+            }
+            else
+            {
+                for (int y = 0; y < height; y++)
+                {
+                    int offset = y * width + start;
+                    for (int l = 0; l < count; l++)
+                        plane[offset + l] = (float) block[l][y];
+                }
+            }
+        }
+    }
+
+    /**
+     * Neseparabilní jádro nad obdélníkovou dlaždicí, velké dlaždice se dělí na poloviny podél delší strany.
+     * Čte se z kopií rovin, zapisuje do původních
+     */
+    private static final class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] sources;
+        private final float[][] targets;
+        private final int width;
+        private final int height;
+        private final ConvolutionKernel kernel;
+        private final int x0;
+        private final int y0;
+        private final int x1;
+        private final int y1;
+
+        TileTask(float[][] sources, float[][] targets, int width, int height, ConvolutionKernel kernel, int x0, int y0, int x1, int y1)
+        {
+            this.sources = sources;
+            this.targets = targets;
+            this.width = width;
+            this.height = height;
+            this.kernel = kernel;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int tileWidth = x1 - x0;
+            int tileHeight = y1 - y0;
+            long cost = (long) tileWidth * tileHeight * kernel.getWidth() * kernel.getHeight();
+            if (cost > SPLIT_THRESHOLD && Math.max(tileWidth, tileHeight) > BLOCK)
+            {
+                if (tileWidth > tileHeight)
+                {
+                    int middle = (x0 + x1) >>> 1;
+                    invokeAll(new TileTask(sources, targets, width, height, kernel, x0, y0, middle, y1),
+                            new TileTask(sources, targets, width, height, kernel, middle, y0, x1, y1));
+                }
+                else
+                {
+                    int middle = (y0 + y1) >>> 1;
+                    invokeAll(new TileTask(sources, targets, width, height, kernel, x0, y0, x1, middle),
+                            new TileTask(sources, targets, width, height, kernel, x0, middle, x1, y1));
+                }
+                return;
+            }
+
+            int kernelWidth = kernel.getWidth();
+            int kernelHeight = kernel.getHeight();
+            int halfX = kernelWidth / 2;
+            int halfY = kernelHeight / 2;
+            // nenulové váhy a jejich posuny, okrajové sloupce jsou předem oříznuté do obrázku
+            int taps = 0;
+            double[] weights = new double[kernelWidth * kernelHeight];
+            int[] offsetsX = new int[weights.length];
+            int[] offsetsY = new int[weights.length];
+            for (int ky = 0; ky < kernelHeight; ky++)
+            {
+                for (int kx = 0; kx < kernelWidth; kx++)
+                {
+                    double weight = kernel.getWeight(kx, ky);
+                    if (weight != 0)
+                    {
+                        weights[taps] = weight;
+                        offsetsX[taps] = kx;
+                        offsetsY[taps] = ky - halfY;
+                        taps++;
+                    }
+                }
+            }
+            int[] columns = new int[x1 - x0 + kernelWidth - 1];
+            for (int i = 0; i < columns.length; i++)
+            {
+                columns[i] = Math.max(0, Math.min(width - 1, x0 - halfX + i));
+            }
+
+            for (int p = 0; p < sources.length; p++)
+            {
+                float[] source = sources[p];
+                float[] target = targets[p];
+                for (int y = y0; y < y1; y++)
+                {
+                    for (int x = x0; x < x1; x++)
+                    {
+                        double sum = 0;
+                        for (int t = 0; t < taps; t++)
+                        {
+                            int sourceY = Math.max(0, Math.min(height - 1, y + offsetsY[t]));
+                            sum += source[sourceY * width + columns[x - x0 + offsetsX[t]]] * weights[t];
+                        }
+                        target[y * width + x] = (float) sum;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Doplní řádek o okraje s opakovaným krajním vzorkem
+     */
+    private static void pad(double[] line, int length, double[] padded, int half)
+    {
+        Arrays.fill(padded, 0, half, line[0]);
+        System.arraycopy(line, 0, padded, half, length);
+        Arrays.fill(padded, half + length, length + 2 * half, line[length - 1]);
+    }
+
+    /**
+     * Přímý výpočet, cena na vzorek je počet vah
+     */
+    private static LineFilter directFilter(double[] taps, int lineLength)
+    {
+        int half = taps.length / 2;
+        double[] padded = new double[lineLength + 2 * half];
+        return line -> {
+            pad(line, lineLength, padded, half);
+            for (int i = 0; i < lineLength; i++) {
+                double sum = 0;
+                for (int k = 0; k < taps.length; k++)
+                    sum += padded[i + k] * taps[k];
+                line[i] = sum;
+            }
+        };
+    }
+
+    /**
+     * Výpočet přes FFT s jádrem ze sdílené GaussianBlurService, dva řádky jednou komplexní transformací
+     */
+    private static LineFilter fftFilter(GaussianBlurService conv, int half, int lineLength)
+    {
+        int length = conv.getLength();
+        double[] lineReal = new double[length];
+        double[] lineImag = new double[length];
+        return new LineFilter()
+        {
+            @Override
+            public void apply(double[] line)
+            {
+                applyPair(line, null);
+            }
+
+            @Override
+            public void applyPair(double[] first, double[] second)
+            {
+                pad(first, lineLength, lineReal, half);
+                Arrays.fill(lineReal, lineLength + 2 * half, length, 0);
+                if (second != null)
+                {
+                    pad(second, lineLength, lineImag, half);
+                    Arrays.fill(lineImag, lineLength + 2 * half, length, 0);
+                }
+                else
+                {
+                    Arrays.fill(lineImag, 0);
+                }
+                conv.convolvePair(lineReal, lineImag);
+                System.arraycopy(lineReal, half, first, 0, lineLength);
+                if (second != null)
+                {
+                    System.arraycopy(lineImag, half, second, 0, lineLength);
+                }
+            }
+        };
+    }
+}
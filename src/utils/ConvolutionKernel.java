@@ -0,0 +1,235 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Konvoluční jádro s lichou šířkou i výškou, střed jádra leží na zpracovávaném pixelu. Jádro se nepřevrací
+ * (počítá se korelace, jak je u obrazových filtrů zvykem). Při vytvoření se zjistí, zda je jádro separabilní
+ * (součin sloupcového a řádkového vektoru), takové jádro se pak počítá dvěma jednorozměrnými průchody.
+ * Instance je neměnná.
+ * @author Adam Petříček
+ */
+public final class ConvolutionKernel {
+    private static final double SEPARABLE_TOLERANCE = 1e-9;
+
+    private final int width;
+    private final int height;
+    private final double[] weights;
+    private final double[] row;
+    private final double[] column;
+
+    private ConvolutionKernel(int width, int height, double[] weights)
+    {
+        if (width < 1 || height < 1 || width % 2 == 0 || height % 2 == 0)
+        {
+            throw new IllegalArgumentException("Kernel size must be odd");
+        }
+        if (weights.length != width * height)
+        {
+            throw new IllegalArgumentException("Kernel needs " + width * height + " weights");
+        }
+        for (double weight : weights)
+        {
+            if (!Double.isFinite(weight))
+            {
+                throw new IllegalArgumentException("Kernel weights must be finite");
+            }
+        }
+        this.width = width;
+        this.height = height;
+        this.weights = weights.clone();
+
+        double[][] factors = separate();
+        this.row = factors == null ? null : factors[0];
+        this.column = factors == null ? null : factors[1];
+    }
+
+    /**
+     * Vytvoří jádro z vah uložených po řádcích
+     * @param width šířka (lichá)
+     * @param height výška (lichá)
+     * @param weights váhy po řádcích
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel of(int width, int height, double... weights)
+    {
+        return new ConvolutionKernel(width, height, weights);
+    }
+
+    /**
+     * Vytvoří jádro jako součin sloupcového a řádkového vektoru
+     * @param row váhy ve směru řádku (lichý počet)
+     * @param column váhy ve směru sloupce (lichý počet)
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel separable(double[] row, double[] column)
+    {
+        double[] weights = new double[row.length * column.length];
+        for (int y = 0; y < column.length; y++)
+        {
+            for (int x = 0; x < row.length; x++)
+            {
+                weights[y * row.length + x] = column[y] * row[x];
+            }
+        }
+        return new ConvolutionKernel(row.length, column.length, weights);
+    }
+
+    /**
+     * Box rozmazání (průměr čtverce 2 * radius + 1)
+     * @param radius poloměr v pixelech
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel box(int radius)
+    {
+        if (radius < 1)
+        {
+            throw new IllegalArgumentException("Radius must be positive");
+        }
+        double[] line = new double[2 * radius + 1];
+        Arrays.fill(line, 1.0 / line.length);
+        return separable(line, line);
+    }
+
+    /**
+     * Zaostření 3x3 (střed 5, sousedé v kříži -1), součet vah je 1
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel sharpen()
+    {
+        return of(3, 3,
+                0, -1, 0,
+                -1, 5, -1,
+                0, -1, 0);
+    }
+
+    /**
+     * Sobelův operátor pro změnu ve směru osy x
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel sobelX()
+    {
+        return separable(new double[] {-1, 0, 1}, new double[] {1, 2, 1});
+    }
+
+    /**
+     * Sobelův operátor pro změnu ve směru osy y
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel sobelY()
+    {
+        return separable(new double[] {1, 2, 1}, new double[] {-1, 0, 1});
+    }
+
+    /**
+     * Laplaceův operátor 3x3 (4-okolí)
+     * @return ConvolutionKernel
+     */
+    public static ConvolutionKernel laplacian()
+    {
+        return of(3, 3,
+                0, 1, 0,
+                1, -4, 1,
+                0, 1, 0);
+    }
+
+    /**
+     * Rozloží jádro na řádkový a sloupcový vektor, pokud to jde (matice vah má hodnost 1)
+     * @return {řádek, sloupec} nebo null
+     */
+    private double[][] separate()
+    {
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++)
+        {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot]))
+            {
+                pivot = i;
+            }
+        }
+        double largest = Math.abs(weights[pivot]);
+        if (largest == 0)
+        {
+            return null;
+        }
+        int pivotX = pivot % width;
+        int pivotY = pivot / width;
+        double[] rowFactor = new double[width];
+        double[] columnFactor = new double[height];
+        for (int x = 0; x < width; x++)
+        {
+            rowFactor[x] = weights[pivotY * width + x] / weights[pivot];
+        }
+        for (int y = 0; y < height; y++)
+        {
+            columnFactor[y] = weights[y * width + pivotX];
+        }
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if (Math.abs(weights[y * width + x] - columnFactor[y] * rowFactor[x]) > SEPARABLE_TOLERANCE * largest)
+                {
+                    return null;
+                }
+            }
+        }
+        return new double[][] {rowFactor, columnFactor};
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Vrací váhu na pozici v jádře
+     * @param x sloupec 0 - šířka - 1
+     * @param y řádek 0 - výška - 1
+     * @return double
+     */
+    public double getWeight(int x, int y)
+    {
+        return weights[y * width + x];
+    }
+
+    /**
+     * Vrací, zda jde jádro rozložit na dva jednorozměrné průchody
+     * @return boolean
+     */
+    public boolean isSeparable()
+    {
+        return row != null;
+    }
+
+    /**
+     * Vrací váhy řádkového průchodu separabilního jádra
+     * @return double[]
+     */
+    public double[] getRow()
+    {
+        if (row == null)
+        {
+            throw new IllegalStateException("Kernel is not separable");
+        }
+        return row.clone();
+    }
+
+    /**
+     * Vrací váhy sloupcového průchodu separabilního jádra
+     * @return double[]
+     */
+    public double[] getColumn()
+    {
+        if (column == null)
+        {
+            throw new IllegalStateException("Kernel is not separable");
+        }
+        return column.clone();
+    }
+}
@@ -0,0 +1,9 @@
+package utils;
+
+/**
+ * Operátor, kterým se hledají hrany v obrázku
+ * @author Adam Petříček
+ */
+public enum EdgeOperator {
+    sobel, laplacian
+}
@@ -0,0 +1,427 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Řetězec filtrů, který se na obrázek použije najednou (např. černobílý -> rozmazání -> inverze).
+ * Sousední bodové operace se sloučí do jedné PointOperation (jeden průchod přes tabulky), všechny kroky pracují nad jedním bufferem
+ * a výsledek se ukládá jen jednou. Instance je neměnná, každé přidání filtru vrací nový řetězec.
+ * @author Adam Petříček
+ */
+public final class FilterPipeline {
+    private static final Pattern STEP = Pattern.compile("([a-z]+)(?::(-?\\d+(?:\\.\\d+)?)(?:-(\\d+))?)?");
+
+    /**
+     * Cena převodu obrázku do lineárních rovin a zpět na pixel
+     */
+    private static final double PLANES_COST = 4;
+    /**
+     * Cena jednoho průchodu rozmazání box aproximací nebo přes FFT na pixel
+     */
+    private static final double APPROXIMATE_PASS_COST = 12;
+
+    private final List<Stage> stages;
+
+    /**
+     * Krok řetězce: bodová operace, rozmazání, konvoluce nebo hledání hran
+     */
+    private interface Stage
+    {
+        String suffix();
+
+        /**
+         * Počet sousedních řádků, které krok potřebuje k výpočtu jednoho řádku obrázku dané výšky
+         */
+        int halo(int imageHeight);
+
+        /**
+         * Přibližná cena kroku na jeden pixel, jednotkou je jedna bodová operace (jedno čtení z tabulky)
+         */
+        double cost();
+    }
+
+    private record PointStage(PointOperation operation) implements Stage
+    {
+        @Override
+        public String suffix()
+        {
+            return operation.getSuffix();
+        }
+
+        @Override
+        public int halo(int imageHeight)
+        {
+            return 0;
+        }
+
+        @Override
+        public double cost()
+        {
+            return 1;
+        }
+    }
+
+    private record BlurStage(double radius) implements Stage
+    {
+        @Override
+        public String suffix()
+        {
+            return "blurred";
+        }
+
+        @Override
+        public int halo(int imageHeight)
+        {
+            return GaussianBlur.getReach(GaussianBlur.choose(radius, imageHeight), radius, imageHeight);
+        }
+
+        @Override
+        public double cost()
+        {
+            // dva průchody, přímý výpočet stojí tolik, kolik má jádro vah, box aproximace a FFT nezávisí na poloměru
+            double pass = GaussianBlur.choose(radius, Integer.MAX_VALUE) == BlurAlgorithm.direct ? 2 * GaussianBlur.getSupport(radius) + 1 : APPROXIMATE_PASS_COST;
+            return PLANES_COST + 2 * pass;
+        }
+    }
+
+    private record ConvolutionStage(ConvolutionKernel kernel, String suffix) implements Stage
+    {
+        @Override
+        public int halo(int imageHeight)
+        {
+            return kernel.getHeight() / 2;
+        }
+
+        @Override
+        public double cost()
+        {
+            return PLANES_COST + (kernel.isSeparable() ? kernel.getWidth() + kernel.getHeight() : kernel.getWidth() * kernel.getHeight());
+        }
+    }
+
+    private record EdgeStage(EdgeOperator operator) implements Stage
+    {
+        @Override
+        public String suffix()
+        {
+            return "edges_" + operator.name();
+        }
+
+        @Override
+        public int halo(int imageHeight)
+        {
+            return 1;
+        }
+
+        @Override
+        public double cost()
+        {
+            // převod na jas a okolí 3x3, Sobel počítá dva gradienty
+            return 1 + (operator == EdgeOperator.sobel ? 18 : 9);
+        }
+    }
+
+    private FilterPipeline(List<Stage> stages)
+    {
+        this.stages = Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Vrací prázdný řetězec filtrů
+     * @return FilterPipeline
+     */
+    public static FilterPipeline empty()
+    {
+        return new FilterPipeline(new ArrayList<>());
+    }
+
+    /**
+     * Ověří zápis řetězce filtrů, např. grey,blur:8,invert
+     * @param chain zápis řetězce
+     * @return boolean
+     */
+    public static boolean isValid(String chain)
+    {
+        try
+        {
+            parse(chain);
+            return true;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Vytvoří řetězec filtrů ze zápisu odděleného čárkami. Kroky: grey, invert, blur nebo blur:poloměr, brightness:posun,
+     * contrast:násobek, gamma:gama, levels:černá-bílá, threshold:práh, posterize:úrovně, sharpen, box:poloměr, sobel, laplacian
+     * @param chain zápis řetězce
+     * @return FilterPipeline
+     */
+    public static FilterPipeline parse(String chain)
+    {
+        if (chain == null || chain.isEmpty())
+        {
+            throw new IllegalArgumentException("Filter chain is empty");
+        }
+        FilterPipeline pipeline = empty();
+        for (String step : chain.split(",", -1))
+        {
+            Matcher matcher = STEP.matcher(step);
+            if (!matcher.matches())
+            {
+                throw new IllegalArgumentException("Invalid filter step: " + step);
+            }
+            String filter = matcher.group(1);
+            String argument = matcher.group(2);
+            String second = matcher.group(3);
+            if (second != null && !filter.equals("levels") || second == null && filter.equals("levels"))
+            {
+                throw new IllegalArgumentException("Invalid filter step: " + step);
+            }
+            if (argument == null && !filter.matches("grey|invert|blur|sharpen|sobel|laplacian"))
+            {
+                throw new IllegalArgumentException("Missing argument: " + step);
+            }
+            try
+            {
+                pipeline = switch (filter)
+                {
+                    case "grey" -> pipeline.point(PointOperation.greyPreset());
+                    case "invert" -> pipeline.point(PointOperation.invertPreset());
+                    case "blur" -> pipeline.blur(argument == null ? GaussianBlur.DEFAULT_RADIUS : Double.parseDouble(argument));
+                    case "brightness" -> pipeline.point(PointOperation.identity().brightness(Integer.parseInt(argument)));
+                    case "contrast" -> pipeline.point(PointOperation.identity().contrast(Double.parseDouble(argument)));
+                    case "gamma" -> pipeline.point(PointOperation.identity().gamma(Double.parseDouble(argument)));
+                    case "levels" -> pipeline.point(PointOperation.identity().levels(Integer.parseInt(argument), Integer.parseInt(second)));
+                    case "threshold" -> pipeline.point(PointOperation.identity().threshold(Integer.parseInt(argument)));
+                    case "posterize" -> pipeline.point(PointOperation.identity().posterize(Integer.parseInt(argument)));
+                    case "sharpen" -> pipeline.sharpen();
+                    case "box" -> pipeline.boxBlur(Integer.parseInt(argument));
+                    case "sobel" -> pipeline.detectEdges(EdgeOperator.sobel);
+                    case "laplacian" -> pipeline.detectEdges(EdgeOperator.laplacian);
+                    default -> throw new IllegalArgumentException("Unknown filter: " + filter);
+                };
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new IllegalArgumentException("Invalid argument: " + step, ex);
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * Přidá černobílý filtr
+     * @return FilterPipeline
+     */
+    public FilterPipeline grey()
+    {
+        return point(PointOperation.greyPreset());
+    }
+
+    /**
+     * Přidá inverzi barev
+     * @return FilterPipeline
+     */
+    public FilterPipeline invert()
+    {
+        return point(PointOperation.invertPreset());
+    }
+
+    /**
+     * Přidá bodovou operaci (jas, kontrast, gama, úrovně, ...)
+     * @param operation bodová operace
+     * @return FilterPipeline
+     */
+    public FilterPipeline point(PointOperation operation)
+    {
+        if (operation.isIdentity())
+        {
+            return this;
+        }
+        return then(new PointStage(operation));
+    }
+
+    /**
+     * Přidá Gaussovo rozmazání s výchozím poloměrem
+     * @return FilterPipeline
+     */
+    public FilterPipeline blur()
+    {
+        return blur(GaussianBlur.DEFAULT_RADIUS);
+    }
+
+    /**
+     * Přidá Gaussovo rozmazání s daným poloměrem
+     * @param radius poloměr (směrodatná odchylka) rozmazání
+     * @return FilterPipeline
+     */
+    public FilterPipeline blur(double radius)
+    {
+        if (!(radius > 0) || Double.isInfinite(radius))
+        {
+            throw new IllegalArgumentException("Radius must be a positive number");
+        }
+        return then(new BlurStage(radius));
+    }
+
+    /**
+     * Přidá zaostření
+     * @return FilterPipeline
+     */
+    public FilterPipeline sharpen()
+    {
+        return convolve(ConvolutionKernel.sharpen(), "sharpened");
+    }
+
+    /**
+     * Přidá box rozmazání
+     * @param radius poloměr v pixelech
+     * @return FilterPipeline
+     */
+    public FilterPipeline boxBlur(int radius)
+    {
+        return convolve(ConvolutionKernel.box(radius), "boxblurred");
+    }
+
+    /**
+     * Přidá konvoluci s vlastním jádrem
+     * @param kernel jádro
+     * @param suffix přípona jména výstupního souboru
+     * @return FilterPipeline
+     */
+    public FilterPipeline convolve(ConvolutionKernel kernel, String suffix)
+    {
+        return then(new ConvolutionStage(kernel, suffix));
+    }
+
+    /**
+     * Přidá hledání hran, obrázek se nahradí černobílou mapou hran
+     * @param operator operátor
+     * @return FilterPipeline
+     */
+    public FilterPipeline detectEdges(EdgeOperator operator)
+    {
+        return then(new EdgeStage(operator));
+    }
+
+    private FilterPipeline then(Stage stage)
+    {
+        List<Stage> extended = new ArrayList<>(stages);
+        extended.add(stage);
+        return new FilterPipeline(extended);
+    }
+
+    /**
+     * Vrací, zda řetězec neobsahuje žádný filtr
+     * @return boolean
+     */
+    public boolean isEmpty()
+    {
+        return stages.isEmpty();
+    }
+
+    /**
+     * Vrací příponu jména výstupního souboru složenou z jednotlivých kroků, např. grey_blurred_inverted
+     * @return String
+     */
+    public String getSuffix()
+    {
+        List<String> parts = new ArrayList<>(stages.size());
+        for (Stage stage : stages)
+        {
+            parts.add(stage.suffix());
+        }
+        return String.join("_", parts);
+    }
+
+    /**
+     * Vrací počet řádků nad a pod pásem obrázku, které je potřeba načíst navíc, aby pás po použití řetězce (applyBand)
+     * vyšel stejně jako při zpracování celého obrázku. Dosahy jednotlivých kroků se sčítají, dosah rozmazání závisí
+     * na algoritmu, který se pro výšku obrázku vybere (u FFT je to celý sloupec)
+     * @param imageHeight výška celého obrázku
+     * @return int
+     */
+    public int getHalo(int imageHeight)
+    {
+        int halo = 0;
+        for (Stage stage : stages)
+        {
+            halo += stage.halo(imageHeight);
+        }
+        return halo;
+    }
+
+    /**
+     * Vrací přibližnou cenu řetězce na jeden pixel obrázku, jednotkou je jedna bodová operace. Slouží k odhadu,
+     * kolik práce dá který obrázek (počet pixelů * cena), a k naplánování dávky od nejdražších obrázků
+     * @return double
+     */
+    public double getCostPerPixel()
+    {
+        double cost = 0;
+        for (Stage stage : stages)
+        {
+            cost += stage.cost();
+        }
+        return cost;
+    }
+
+    /**
+     * Použije řetězec na obrázek na místě. Sousední bodové operace proběhnou v jednom průchodu
+     * @param image obrázek, který se přepíše výsledkem
+     */
+    public void apply(BufferedImage image)
+    {
+        applyBand(image, image.getHeight());
+    }
+
+    /**
+     * Použije řetězec na pás obrázku na místě. Průchody po sloupcích (rozmazání, konvoluce) volí algoritmus podle výšky
+     * celého obrázku, ne pásu, pás načtený s okraji getHalo tak vyjde stejně jako odpovídající řádky celého obrázku
+     * @param band pás obrázku, který se přepíše výsledkem
+     * @param imageHeight výška celého obrázku
+     */
+    public void applyBand(BufferedImage band, int imageHeight)
+    {
+        int i = 0;
+        while (i < stages.size())
+        {
+            if (stages.get(i) instanceof BlurStage blur)
+            {
+                LinearPlanes planes = LinearPlanes.fromImage(band);
+                GaussianBlur.blur(planes.getPlanes(), planes.getWidth(), planes.getHeight(), blur.radius(),
+                        GaussianBlur.choose(blur.radius(), planes.getWidth()), GaussianBlur.choose(blur.radius(), imageHeight));
+                planes.toImage(band);
+                i++;
+                continue;
+            }
+            if (stages.get(i) instanceof ConvolutionStage convolution)
+            {
+                Convolution.apply(band, convolution.kernel(), imageHeight);
+                i++;
+                continue;
+            }
+            if (stages.get(i) instanceof EdgeStage edge)
+            {
+                Convolution.detectEdges(band, edge.operator());
+                i++;
+                continue;
+            }
+            PointOperation fused = PointOperation.identity();
+            while (i < stages.size() && stages.get(i) instanceof PointStage point)
+            {
+                fused = fused.then(point.operation());
+                i++;
+            }
+            fused.apply(band);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separabilní Gaussovo rozmazání rovin pixelů. Podle poloměru a délky řádku volí mezi přímou konvolucí s useknutým jádrem,
+ * aproximací třemi průchody box filtru a přesnou konvolucí přes FFT (GaussianBlurService).
+ * Mimo obrázek se počítá s nulami a každý průchod se vydělí součtem vah jádra, které do obrázku zasahují. Váhy jsou separabilní,
+ * takže místo celé roviny vah stačí jeden vektor pro řádky a jeden pro sloupce.
+ *
+ * Odchylka od přesné FFT konvoluce po převodu zpět na 8 bitů: přímá konvoluce (jádro useknuté na 4 sigma) nejvýše 2 úrovně,
+ * box aproximace v průměru do 0.5 úrovně, na ostrých hranách v tmavých oblastech (kde gama odchylku zesílí) až 15 úrovní.
+ * @author Adam Petříček
+ */
+public final class GaussianBlur {
+    /**
+     * Výchozí poloměr (směrodatná odchylka) rozmazání
+     */
+    public static final double DEFAULT_RADIUS = 4.5;
+
+    private static final double TRUNCATION = 4.0;
+    private static final double MAX_DIRECT_RADIUS = 12.0;
+    private static final int MAX_FFT_LINE = 512;
+    private static final int BLOCK = 16;
+    private static final long SPLIT_THRESHOLD = 1 << 16;
+
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private GaussianBlur() {}
+
+    /**
+     * Filtr, který rozmaže jeden řádek nebo sloupec na místě
+     */
+    private interface LineFilter
+    {
+        void apply(double[] line);
+
+        default void applyPair(double[] first, double[] second)
+        {
+            apply(first);
+            apply(second);
+        }
+    }
+
+    /**
+     * Vybere algoritmus pro daný poloměr a délku řádku: malé poloměry přímo, u krátkých řádků přesně přes FFT, jinak box aproximace
+     * @param radius poloměr rozmazání
+     * @param lineLength délka řádku nebo sloupce
+     * @return BlurAlgorithm
+     */
+    public static BlurAlgorithm choose(double radius, int lineLength)
+    {
+        if (radius <= MAX_DIRECT_RADIUS)
+        {
+            return BlurAlgorithm.direct;
+        }
+        if (lineLength <= MAX_FFT_LINE)
+        {
+            return BlurAlgorithm.fft;
+        }
+        return BlurAlgorithm.box;
+    }
+
+    /**
+     * Vrací dosah rozmazání v pixelech, dál od pixelu už jádro (useknuté na TRUNCATION násobek poloměru) nezasahuje.
+     * Tolik řádků navíc potřebuje pás obrázku, aby se rozmazal stejně jako celý obrázek
+     * @param radius poloměr rozmazání
+     * @return int
+     */
+    public static int getSupport(double radius)
+    {
+        return (int) Math.ceil(radius * TRUNCATION);
+    }
+
+    /**
+     * Rozmaže všechny roviny nejdřív po řádcích a pak po sloupcích, výsledek je normalizovaný
+     * @param planes roviny pixelů uložené po řádcích
+     * @param width šířka
+     * @param height výška
+     * @param radius poloměr (směrodatná odchylka) rozmazání
+     * @param algorithm algoritmus, auto vybere podle poloměru
+     */
+    public static void blur(float[][] planes, int width, int height, double radius, BlurAlgorithm algorithm)
+    {
+        if (!(radius > 0) || Double.isInfinite(radius))
+        {
+            throw new IllegalArgumentException("Radius must be a positive number");
+        }
+        BlurAlgorithm horizontal = algorithm == BlurAlgorithm.auto ? choose(radius, width) : algorithm;
+        BlurAlgorithm vertical = algorithm == BlurAlgorithm.auto ? choose(radius, height) : algorithm;
+        blur(planes, width, height, radius, horizontal, vertical);
+    }
+
+    /**
+     * Rozmaže všechny roviny nejdřív po řádcích a pak po sloupcích zadanými algoritmy. Pás většího obrázku tak může
+     * použít stejné algoritmy jako celý obrázek
+     * @param planes roviny pixelů uložené po řádcích
+     * @param width šířka
+     * @param height výška
+     * @param radius poloměr (směrodatná odchylka) rozmazání
+     * @param horizontal algoritmus průchodu po řádcích
+     * @param vertical algoritmus průchodu po sloupcích
+     */
+    public static void blur(float[][] planes, int width, int height, double radius, BlurAlgorithm horizontal, BlurAlgorithm vertical)
+    {
+        if (!(radius > 0) || Double.isInfinite(radius))
+        {
+            throw new IllegalArgumentException("Radius must be a positive number");
+        }
+        if (horizontal == BlurAlgorithm.auto || vertical == BlurAlgorithm.auto)
+        {
+            throw new IllegalArgumentException("Pass algorithm must be chosen");
+        }
+        run(new PassTask(planes, width, height, horizontal, weights(horizontal, radius, width), radius, true, 0, height));
+        run(new PassTask(planes, width, height, vertical, weights(vertical, radius, height), radius, false, 0, width));
+    }
+
+    /**
+     * Vrací součet vah jádra pro každou pozici v řádku, tedy rozmazaný řádek samých jedniček
+     * @param algorithm algoritmus
+     * @param radius poloměr rozmazání
+     * @param lineLength délka řádku
+     * @return double[]
+     */
+    private static double[] weights(BlurAlgorithm algorithm, double radius, int lineLength)
+    {
+        double[] ones = new double[lineLength];
+        Arrays.fill(ones, 1);
+        createFilter(algorithm, radius, lineLength).apply(ones);
+        return ones;
+    }
+
+    /**
+     * Nastaví počet vláken, na kterých se rozmazání počítá, pokud se nevolá z jiného ForkJoinPoolu
+     * @param parallelism počet vláken
+     */
+    public static void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        ForkJoinPool old = pool;
+        pool = new ForkJoinPool(parallelism);
+        if (old != ForkJoinPool.commonPool())
+        {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Vrací počet vláken, na kterých se rozmazání počítá
+     * @return int
+     */
+    public static int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Uvnitř ForkJoinPoolu (např. poolu kolekce obrázků) se úloha rozdělí mezi jeho vlákna, jinak běží na poolu rozmazání.
+     * Stejný pool používá i Convolution
+     */
+    static void run(ForkJoinTask<?> task)
+    {
+        if (ForkJoinTask.inForkJoinPool())
+        {
+            task.invoke();
+        }
+        else
+        {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * Jeden průchod (po řádcích nebo po sloupcích) nad rozsahem řádků/sloupců, velké rozsahy se dělí na poloviny.
+     * Každý list si vytváří vlastní filtr i pomocné buffery, sloupce se kopírují po blocích BLOCK sousedních sloupců,
+     * takže se z každého řádku čte souvislý úsek paměti
+     */
+    private static final class PassTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] planes;
+        private final int width;
+        private final int height;
+        private final BlurAlgorithm algorithm;
+        private final double[] weights;
+        private final double radius;
+        private final boolean horizontal;
+        private final int from;
+        private final int to;
+
+        PassTask(float[][] planes, int width, int height, BlurAlgorithm algorithm, double[] weights, double radius, boolean horizontal, int from, int to)
+        {
+            this.planes = planes;
+            this.width = width;
+            this.height = height;
+            this.algorithm = algorithm;
+            this.weights = weights;
+            this.radius = radius;
+            this.horizontal = horizontal;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int lineLength = horizontal ? width : height;
+            if ((long) (to - from) * lineLength > SPLIT_THRESHOLD && to - from > BLOCK)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PassTask(planes, width, height, algorithm, weights, radius, horizontal, from, middle),
+                        new PassTask(planes, width, height, algorithm, weights, radius, horizontal, middle, to));
+                return;
+            }
+            LineFilter filter = createFilter(algorithm, radius, lineLength);
+            double[][] block = new double[BLOCK][lineLength];
+            for (float[] plane : planes)
+            {
+                for (int start = from; start < to; start += BLOCK)
+                {
+                    int count = Math.min(BLOCK, to - start);
+                    gather(plane, start, count, block);
+                    int l = 0;
+                    for (; l + 1 < count; l += 2)
+                        filter.applyPair(block[l], block[l + 1]);
+                    if (l < count)
+                        filter.apply(block[l]);
+                    scatter(plane, start, count, block);
+                }
+            }
+        }
+
+        private void gather(float[] plane, int start, int count, double[][] block)
+        {
+            if (horizontal)
+            {
+                for (int l = 0; l < count; l++)
+                {
+                    int offset = (start + l) * width;
+                    double[] line = block[l];
+                    for (int x = 0; x < width; x++)
+                        line[x] = plane[offset + x];
+                }
+            }
+            else
+            {
+                for (int y = 0; y < height; y++)
+                {
+                    int offset = y * width + start;
+                    for (int l = 0; l < count; l++)
+                        block[l][y] = plane[offset + l];
+                }
+            }
+        }
+
+        private void scatter(float[] plane, int start, int count, double[][] block)
+        {
+            if (horizontal)
+            {
+                for (int l = 0; l < count; l++)
+                {
+                    int offset = (start + l) * width;
+                    double[] line = block[l];
+                    for (int x = 0; x < width; x++)
+                        plane[offset + x] = (float) (line[x] / weights[x]);
+                }
+            }
+            else
+            {
+                for (int y = 0; y < height; y++)
+                {
+                    int offset = y * width + start;
+                    double weight = weights[y];
+                    for (int l = 0; l < count; l++)
+                        plane[offset + l] = (float) (block[l][y] / weight);
+                }
+            }
+        }
+    }
+
+    private static LineFilter createFilter(BlurAlgorithm algorithm, double radius, int lineLength)
+    {
+        return switch (algorithm)
+        {
+            case direct -> directFilter(radius, lineLength);
+            case box -> boxFilter(radius, lineLength);
+            case fft, auto -> fftFilter(radius, lineLength);
+        };
+    }
+
+    /**
+     * Přímá konvoluce s jádrem useknutým na TRUNCATION násobek poloměru
+     */
+    private static LineFilter directFilter(double radius, int lineLength)
+    {
+        double scaler = -1 / (radius * radius * 2);
+        int half = Math.min((int) Math.ceil(radius * TRUNCATION), lineLength - 1);
+        double[] kernel = new double[2 * half + 1];
+        for (int i = -half; i <= half; i++)
+            kernel[half + i] = Math.exp(scaler * i * i);
+        double[] result = new double[lineLength];
+        return line -> {
+            int n = line.length;
+            for (int i = 0; i < n; i++) {
+                int from = Math.max(0, i - half);
+                int to = Math.min(n - 1, i + half);
+                double sum = 0;
+                for (int j = from, k = from - i + half; j <= to; j++, k++)
+                    sum += line[j] * kernel[k];
+                result[i] = sum;
+            }
+            System.arraycopy(result, 0, line, 0, n);
+        };
+    }
+
+    /**
+     * Aproximace Gaussova jádra třemi průchody box filtru (klouzavý součet), cena na pixel nezávisí na poloměru
+     */
+    private static LineFilter boxFilter(double radius, int lineLength)
+    {
+        int[] halves = boxHalfWidths(radius, 3);
+        double[] prefix = new double[lineLength + 1];
+        return line -> {
+            int n = line.length;
+            for (int half : halves) {
+                for (int i = 0; i < n; i++)
+                    prefix[i + 1] = prefix[i] + line[i];
+                double norm = 1.0 / (2 * half + 1);
+                for (int i = 0; i < n; i++) {
+                    int from = Math.max(0, i - half);
+                    int to = Math.min(n, i + half + 1);
+                    line[i] = (prefix[to] - prefix[from]) * norm;
+                }
+            }
+        };
+    }
+
+    /**
+     * Vrací, o kolik pixelů daleko sahá jeden průchod daného algoritmu: přímý výpočet do useknutí jádra, box
+     * aproximace součet polovičních šířek boxů, FFT přes celý řádek
+     * @param algorithm algoritmus (ne auto)
+     * @param radius poloměr rozmazání
+     * @param lineLength délka řádku nebo sloupce
+     * @return int
+     */
+    public static int getReach(BlurAlgorithm algorithm, double radius, int lineLength)
+    {
+        return switch (algorithm)
+        {
+            case direct -> Math.min(getSupport(radius), lineLength - 1);
+            case box -> Math.min(Arrays.stream(boxHalfWidths(radius, 3)).sum(), lineLength - 1);
+            case fft, auto -> lineLength - 1;
+        };
+    }
+
+    /**
+     * Vrací poloviční šířky boxů, jejichž opakované použití má stejný rozptyl jako Gaussovo jádro
+     * @param sigma směrodatná odchylka
+     * @param passes počet průchodů
+     * @return int[]
+     */
+    static int[] boxHalfWidths(double sigma, int passes)
+    {
+        double ideal = Math.sqrt(12 * sigma * sigma / passes + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0)
+            lower--;
+        int upper = lower + 2;
+        double m = (12 * sigma * sigma - passes * lower * lower - 4 * passes * lower - 3 * passes) / (-4.0 * lower - 4);
+        int lowerCount = (int) Math.round(m);
+        int[] halves = new int[passes];
+        for (int i = 0; i < passes; i++)
+            halves[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        return halves;
+    }
+
+    /**
+     * Přesná konvoluce s celým jádrem přes FFT, délka transformace pokrývá celý řádek bez přetečení.
+     * Dva reálné řádky se zpracují jednou komplexní transformací (jeden v reálné, druhý v imaginární složce)
+     */
+    private static LineFilter fftFilter(double radius, int lineLength)
+    {
+        GaussianBlurService conv = GaussianBlurService.gaussian(radius, lineLength);
+        int length = conv.getLength();
+        double[] lineReal = new double[length];
+        double[] lineImag = new double[length];
+        return new LineFilter()
+        {
+            @Override
+            public void apply(double[] line)
+            {
+                applyPair(line, null);
+            }
+
+            @Override
+            public void applyPair(double[] first, double[] second)
+            {
+                System.arraycopy(first, 0, lineReal, 0, first.length);
+                Arrays.fill(lineReal, first.length, length, 0);
+                if (second != null)
+                {
+                    System.arraycopy(second, 0, lineImag, 0, second.length);
+                    Arrays.fill(lineImag, second.length, length, 0);
+                }
+                else
+                {
+                    Arrays.fill(lineImag, 0);
+                }
+                conv.convolvePair(lineReal, lineImag);
+                System.arraycopy(lineReal, 0, first, 0, first.length);
+                if (second != null)
+                {
+                    System.arraycopy(lineImag, 0, second, 0, second.length);
+                }
+            }
+        };
+    }
+}
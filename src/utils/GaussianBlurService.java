@@ -1,15 +1,49 @@
 package utils;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public final class GaussianBlurService {
 
+    private static final int MAX_CACHED = 32;
+
+    // tabulky pro jednu délku transformace sdílí všechny instance, transformovaná jádra se pamatují podle parametrů
+    private static final Map<Integer, Plan> plans = new ConcurrentHashMap<>();
+    private static final Map<KernelKey, GaussianBlurService> gaussians = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<KernelKey, GaussianBlurService> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            });
+
     private final int length;
     private double[] kernelReal;
     private double[] kernelImag;
 
-    private double[] cosTable;
-    private double[] sinTable;
-    private int[] bitRevTable;
+    private final double[] cosTable;
+    private final double[] sinTable;
+    private final int[] bitRevTable;
 
+    private record Plan(double[] cosTable, double[] sinTable, int[] bitRevTable) {
+        static Plan create(int length) {
+            int levels = 31 - Integer.numberOfLeadingZeros(length);
+            double[] cosTable = new double[length / 2];
+            double[] sinTable = new double[length / 2];
+            for (int i = 0; i < cosTable.length; i++) {
+                cosTable[i] = Math.cos(2 * Math.PI * i / length);
+                sinTable[i] = Math.sin(2 * Math.PI * i / length);
+            }
+            int[] bitRevTable = new int[length];
+            for (int i = 0; i < length; i++)
+                bitRevTable[i] = Integer.reverse(i) >>> (32 - levels);
+            return new Plan(cosTable, sinTable, bitRevTable);
+        }
+    }
+
+    private record KernelKey(double radius, int lineLength) {}
 
     public GaussianBlurService(double[] krnReal) {
         length = krnReal.length;
@@ -17,22 +51,66 @@ public final class GaussianBlurService {
         if (1 << levels != length)
             throw new IllegalArgumentException("Length is not a power of 2");
 
-        cosTable = new double[length / 2];
-        sinTable = new double[length / 2];
-        for (int i = 0; i < cosTable.length; i++) {
-            cosTable[i] = Math.cos(2 * Math.PI * i / length);
-            sinTable[i] = Math.sin(2 * Math.PI * i / length);
-        }
-
-        bitRevTable = new int[length];
-        for (int i = 0; i < length; i++)
-            bitRevTable[i] = Integer.reverse(i) >>> (32 - levels);
+        Plan plan = plans.computeIfAbsent(length, Plan::create);
+        cosTable = plan.cosTable();
+        sinTable = plan.sinTable();
+        bitRevTable = plan.bitRevTable();
 
         kernelReal = krnReal.clone();
         kernelImag = new double[length];
         transform(kernelReal, kernelImag);
     }
 
+    /**
+     * Vrací (sdílenou) konvoluci s Gaussovým jádrem pro řádky dané délky, dávka stejně velkých obrázků tak tabulky
+     * ani transformované jádro znovu nepočítá
+     * @param radius poloměr (směrodatná odchylka) rozmazání
+     * @param lineLength délka řádku
+     * @return GaussianBlurService
+     */
+    public static GaussianBlurService gaussian(double radius, int lineLength) {
+        return gaussians.computeIfAbsent(new KernelKey(radius, lineLength), key -> {
+            double scaler = -1 / (radius * radius * 2);
+            int length = Integer.highestOneBit(lineLength * 2 - 1) * 2;
+            double[] kernel = new double[length];
+            for (int i = -(lineLength - 1); i < lineLength; i++)
+                kernel[(i + length) % length] = Math.exp(scaler * i * i);
+            return new GaussianBlurService(kernel);
+        });
+    }
+
+    /**
+     * Vrací konvoluci s libovolným jádrem pro úseky dané délky. Váha k (0 až weights.length - 1) se uloží na pozici
+     * (weights.length / 2 - k) modulo délka transformace, výsledek na pozici i + weights.length / 2 tak odpovídá součtu
+     * line[i + k] * weights[k] (korelace, jádro se nepřevrací). Délka transformace je nejmenší mocnina 2, která pokryje
+     * celý úsek, takže nedochází k přetečení. Váhy jsou vydělené délkou, protože zpětná transformace nenormalizuje
+     * @param weights váhy jádra (lichý počet)
+     * @param lineLength délka úseku včetně okrajů
+     * @return GaussianBlurService
+     */
+    public static GaussianBlurService forWeights(double[] weights, int lineLength) {
+        int half = weights.length / 2;
+        int length = Integer.highestOneBit(Math.max(lineLength, weights.length) * 2 - 1);
+        double[] kernel = new double[length];
+        for (int k = 0; k < weights.length; k++)
+            kernel[Math.floorMod(half - k, length)] += weights[k] / length;
+        return new GaussianBlurService(kernel);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Konvoluce dvou reálných řádků jednou komplexní transformací: jádro je reálné, takže první řádek
+     * zůstane v reálné a druhý v imaginární složce
+     * @param first první řádek, doplněný nulami na délku transformace
+     * @param second druhý řádek, doplněný nulami na délku transformace
+     */
+    public void convolvePair(double[] first, double[] second) {
+        convolve(first, second);
+    }
+
     public void convolve(double[] real, double[] imag) {
         if (real.length != length || imag.length != length)
             throw new IllegalArgumentException();
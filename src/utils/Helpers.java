@@ -13,7 +13,7 @@ public final class Helpers {
      * @param input
      * @return String
      */
-    public static String makeNumberReadable(int input)
+    public static String makeNumberReadable(long input)
     {
         DecimalFormat formatter = new DecimalFormat("#,###");
         return formatter.format(input);
@@ -3,6 +3,7 @@ package utils;
 import com.drew.imaging.ImageProcessingException;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -16,10 +17,16 @@ public interface IPatternImage extends Comparable<IPatternImage>
 
     public StringBuilder getMetadata() throws ImageProcessingException, IOException;
     public void saveMetadata() throws IOException, ImageProcessingException;
-    public int getTotalPixels();
-    public Map<String, Integer> getMostCommonColors();
+    public long getTotalPixels();
+    public Map<String, Long> getMostCommonColors();
+    public List<ColorEstimate> getMostCommonColorsApprox();
     public void copyAndInvert() throws IOException;
     public void copyAndMakeGrey() throws IOException;
     public void copyAndBlur() throws IOException;
+    public void copyAndBlur(double radius) throws IOException;
+    public void copyAndApply(FilterPipeline pipeline) throws IOException;
+    public void copyAndSharpen() throws IOException;
+    public void copyAndBoxBlur(int radius) throws IOException;
+    public void copyAndDetectEdges(EdgeOperator operator) throws IOException;
 
 }
@@ -0,0 +1,99 @@
+package utils;
+
+import java.util.Map;
+
+/**
+ * Souhrnné statistiky pixelů obrázku spočítané z jeho histogramu: počet pixelů, počet různých barev, průměrná barva
+ * a nejčastější barvy. Jsou malé, takže se dají uložit i pro obrázky, jejichž celý histogram se neukládá.
+ * @author Adam Petříček
+ */
+public final class ImageStatistics {
+    private final long totalPixels;
+    private final int distinctColors;
+    private final int meanColor;
+    private final long[] top;
+
+    /**
+     * Konstruktor
+     * @param totalPixels počet započtených pixelů
+     * @param distinctColors počet různých barev
+     * @param meanColor průměrná barva RGB
+     * @param top nejčastější barvy zabalené jako v ColorHistogram.top()
+     */
+    public ImageStatistics(long totalPixels, int distinctColors, int meanColor, long[] top)
+    {
+        this.totalPixels = totalPixels;
+        this.distinctColors = distinctColors;
+        this.meanColor = meanColor & 0x00FFFFFF;
+        this.top = top.clone();
+    }
+
+    /**
+     * Spočítá statistiky z histogramu
+     * @param histogram histogram celého obrázku
+     * @return ImageStatistics
+     */
+    public static ImageStatistics of(ColorHistogram histogram)
+    {
+        long[] sums = new long[3];
+        histogram.forEach((rgb, count) -> {
+            sums[0] += (long) ((rgb >> 16) & 0xFF) * count;
+            sums[1] += (long) ((rgb >> 8) & 0xFF) * count;
+            sums[2] += (long) (rgb & 0xFF) * count;
+        });
+        long total = histogram.getTotal();
+        int mean = 0;
+        if (total > 0)
+        {
+            mean = (int) Math.round((double) sums[0] / total) << 16
+                    | (int) Math.round((double) sums[1] / total) << 8
+                    | (int) Math.round((double) sums[2] / total);
+        }
+        return new ImageStatistics(total, histogram.getDistinctColors(), mean, histogram.top(ColorHistogram.TOP_COLORS));
+    }
+
+    /**
+     * Vrací počet započtených pixelů
+     * @return long
+     */
+    public long getTotalPixels()
+    {
+        return totalPixels;
+    }
+
+    /**
+     * Vrací počet různých barev
+     * @return int
+     */
+    public int getDistinctColors()
+    {
+        return distinctColors;
+    }
+
+    /**
+     * Vrací průměrnou barvu RGB
+     * @return int
+     */
+    public int getMeanColor()
+    {
+        return meanColor;
+    }
+
+    /**
+     * Vrací nejčastější barvy zabalené jako v ColorHistogram.top()
+     * @return long[]
+     */
+    public long[] getTop()
+    {
+        return top.clone();
+    }
+
+    /**
+     * Vrací nejčastější barvy jako mapu hex kódu barvy a počtu výskytů, seřazenou sestupně
+     * @return Map<String, Long>
+     */
+    public Map<String, Long> getMostCommonColors()
+    {
+        return ColorHistogram.toMap(top);
+    }
+}
@@ -0,0 +1,192 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Obrázek rozložený do float rovin v lineárním světle (gama 2.2), jedna rovina na barevný kanál.
+ * Převod z 8 bitů jde přes tabulku 256 hodnot, zpětný převod přes tabulku prahů, takže se nikde nevolá Math.pow.
+ * Rovina alfa se vytváří jen u obrázků s průhledností, barvy se v tom případě drží přednásobené alfou.
+ * @author Adam Petříček
+ */
+public final class LinearPlanes {
+    private static final double GAMMA = 2.2;
+    private static final int INDEX_SIZE = 4096;
+
+    private static final float[] TO_LINEAR = new float[256];
+    private static final float[] THRESHOLDS = new float[256];
+    private static final short[] INDEX = new short[INDEX_SIZE];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            TO_LINEAR[i] = (float) Math.pow(i / 255.0, GAMMA);
+            // od této lineární hodnoty se výsledek zaokrouhlí na i
+            THRESHOLDS[i] = i == 0 ? Float.NEGATIVE_INFINITY : (float) Math.pow((i - 0.5) / 255.0, GAMMA);
+        }
+        int code = 0;
+        for (int i = 0; i < INDEX_SIZE; i++)
+        {
+            float start = (float) i / INDEX_SIZE;
+            while (code < 255 && THRESHOLDS[code + 1] <= start)
+            {
+                code++;
+            }
+            INDEX[i] = (short) code;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final float[][] planes;
+    private final boolean hasAlpha;
+
+    private LinearPlanes(int width, int height, boolean hasAlpha)
+    {
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = hasAlpha;
+        this.planes = new float[hasAlpha ? 4 : 3][width * height];
+    }
+
+    /**
+     * Převede 8bitovou složku barvy do lineárního světla
+     * @param value složka 0 - 255
+     * @return float
+     */
+    public static float toLinear(int value)
+    {
+        return TO_LINEAR[value & 0xFF];
+    }
+
+    /**
+     * Převede lineární hodnotu zpět na 8bitovou složku se zaokrouhlením, výsledek se ořízne do rozsahu 0 - 255
+     * @param linear hodnota v lineárním světle
+     * @return int
+     */
+    public static int toSrgb(float linear)
+    {
+        if (!(linear > 0))
+        {
+            return 0;
+        }
+        if (linear >= 1)
+        {
+            return 255;
+        }
+        int code = INDEX[(int) (linear * INDEX_SIZE)];
+        while (code < 255 && linear >= THRESHOLDS[code + 1])
+        {
+            code++;
+        }
+        return code;
+    }
+
+    /**
+     * Rozloží obrázek do rovin, velký obrázek po pásech řádků souběžně (viz RowBands)
+     * @param image obrázek
+     * @return LinearPlanes
+     */
+    public static LinearPlanes fromImage(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        LinearPlanes result = new LinearPlanes(width, height, image.getColorModel().hasAlpha());
+        float[] red = result.planes[0];
+        float[] green = result.planes[1];
+        float[] blue = result.planes[2];
+        float[] alpha = result.hasAlpha ? result.planes[3] : null;
+        PixelAccess pixels = PixelAccess.of(image);
+        RowBands.run(width, height, (from, to) -> {
+            int[] row = new int[width];
+            for (int y = from; y < to; y++)
+            {
+                pixels.getRow(y, row);
+                int offset = y * width;
+                for (int x = 0; x < width; x++)
+                {
+                    int argb = row[x];
+                    float a = 1;
+                    if (alpha != null)
+                    {
+                        a = (argb >>> 24) / 255f;
+                        alpha[offset + x] = a;
+                    }
+                    red[offset + x] = TO_LINEAR[(argb >>> 16) & 0xFF] * a;
+                    green[offset + x] = TO_LINEAR[(argb >>> 8) & 0xFF] * a;
+                    blue[offset + x] = TO_LINEAR[argb & 0xFF] * a;
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Zapíše roviny zpět do obrázku stejných rozměrů, obrázek bez průhlednosti je výsledkem neprůhledný.
+     * Velký obrázek se zapisuje po pásech řádků souběžně, pokud to jeho typ dovoluje
+     * @param image cílový obrázek
+     */
+    public void toImage(BufferedImage image)
+    {
+        float[] red = planes[0];
+        float[] green = planes[1];
+        float[] blue = planes[2];
+        float[] alpha = hasAlpha ? planes[3] : null;
+        PixelAccess pixels = PixelAccess.of(image);
+        RowBands.Band band = (from, to) -> {
+            int[] row = new int[width];
+            for (int y = from; y < to; y++)
+            {
+                int offset = y * width;
+                for (int x = 0; x < width; x++)
+                {
+                    int a = 255;
+                    float scale = 1;
+                    if (alpha != null)
+                    {
+                        float coverage = alpha[offset + x];
+                        a = Math.round(Math.min(1, Math.max(0, coverage)) * 255);
+                        scale = coverage > 0 ? 1 / coverage : 0;
+                    }
+                    row[x] = a << 24
+                            | toSrgb(red[offset + x] * scale) << 16
+                            | toSrgb(green[offset + x] * scale) << 8
+                            | toSrgb(blue[offset + x] * scale);
+                }
+                pixels.setRow(y, row);
+            }
+        };
+        if (pixels.isConcurrentWritable())
+        {
+            RowBands.run(width, height, band);
+        }
+        else
+        {
+            band.apply(0, height);
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Vrací roviny (červená, zelená, modrá a případně alfa)
+     * @return float[][]
+     */
+    public float[][] getPlanes()
+    {
+        return planes;
+    }
+
+    public boolean hasAlpha()
+    {
+        return hasAlpha;
+    }
+}
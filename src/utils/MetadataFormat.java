@@ -0,0 +1,25 @@
+package utils;
+
+/**
+ * Formát exportu metadat: čitelný text, JSON Lines (jeden JSON objekt na obrázek) nebo CSV (jeden řádek na tag)
+ * @author Adam Petříček
+ */
+public enum MetadataFormat {
+    text("txt"), jsonl("jsonl"), csv("csv");
+
+    private final String extension;
+
+    MetadataFormat(String extension)
+    {
+        this.extension = extension;
+    }
+
+    /**
+     * Vrací příponu souboru pro daný formát
+     * @return String
+     */
+    public String getExtension()
+    {
+        return extension;
+    }
+}
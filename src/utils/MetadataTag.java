@@ -0,0 +1,65 @@
+package utils;
+
+import com.drew.metadata.Tag;
+
+/**
+ * Jeden tag metadat rozdělený na adresář, jméno a hodnotu, aby se dal exportovat strukturovaně
+ * @author Adam Petříček
+ */
+public final class MetadataTag {
+    private final String directory;
+    private final String name;
+    private final String description;
+
+    /**
+     * Konstruktor
+     * @param directory jméno adresáře metadat (např. Exif IFD0)
+     * @param name jméno tagu
+     * @param description čitelná hodnota tagu
+     */
+    public MetadataTag(String directory, String name, String description)
+    {
+        this.directory = directory;
+        this.name = name;
+        this.description = description;
+    }
+
+    /**
+     * Převede tag z metadata-extractoru, hodnota je stejná jako v Tag.toString() (včetně náhradního textu,
+     * když knihovna hodnotu neumí popsat)
+     * @param tag tag z metadata-extractoru
+     * @return MetadataTag
+     */
+    public static MetadataTag of(Tag tag)
+    {
+        String prefix = String.format("[%s] %s - ", tag.getDirectoryName(), tag.getTagName());
+        String text = tag.toString();
+        String description = text.startsWith(prefix) ? text.substring(prefix.length()) : tag.getDescription();
+        return new MetadataTag(tag.getDirectoryName(), tag.getTagName(), description == null ? "" : description);
+    }
+
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * Vrací tag ve formátu [adresář] jméno - hodnota
+     * @return String
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("[%s] %s - %s", directory, name, description);
+    }
+}
@@ -0,0 +1,344 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pixely ARGB uložené mimo haldu, v přímých (direct) bufferech nebo v dočasném souboru namapovaném do paměti.
+ * Pásy pro filtry (readBand) mají stejný formát pixelů jako zdrojový obrázek, výstup je tak stejný jako při zpracování
+ * na haldě (např. černobílé PNG zůstane černobílé).
+ * Obrázek je rozdělený na kusy celých řádků do 1 GiB, počet pixelů tedy není omezený rozsahem int a pixely
+ * nezatěžují garbage collector. Paměť se uvolňuje hned voláním close(), dočasný soubor se přitom smaže. Přístup k pixelům
+ * je synchronizovaný, aby se paměť nemohla uvolnit uprostřed čtení.
+ * @author Adam Petříček
+ */
+public final class OffHeapRaster implements AutoCloseable {
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static
+    {
+        // sun.misc.Unsafe.invokeCleaner uvolní direct i mapovaný buffer hned, bez čekání na GC
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int width;
+    private final int height;
+    private final boolean hasAlpha;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+    private final PixelStorage storage;
+    private final int rowsPerChunk;
+    private final ByteBuffer[] chunks;
+    private final IntBuffer[] pixels;
+    private final FileChannel channel;
+    private boolean closed;
+
+    private OffHeapRaster(int width, int height, ColorModel colorModel, SampleModel sampleModel, PixelStorage storage) throws IOException
+    {
+        if (width < 1 || height < 1)
+        {
+            throw new IllegalArgumentException("Raster must not be empty");
+        }
+        if (4L * width > MAX_CHUNK_BYTES)
+        {
+            throw new IllegalArgumentException("Row is too long: " + width);
+        }
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = colorModel.hasAlpha();
+        this.colorModel = colorModel;
+        this.sampleModel = sampleModel;
+        this.storage = storage;
+        this.rowsPerChunk = (int) Math.min(height, MAX_CHUNK_BYTES / (4L * width));
+        int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+        this.chunks = new ByteBuffer[count];
+        this.pixels = new IntBuffer[count];
+        this.channel = storage == PixelStorage.mapped ? openTempFile() : null;
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+                long bytes = 4L * width * rows;
+                chunks[i] = channel != null
+                        ? channel.map(FileChannel.MapMode.READ_WRITE, 4L * width * rowsPerChunk * i, bytes)
+                        : ByteBuffer.allocateDirect((int) bytes);
+                chunks[i].order(ByteOrder.nativeOrder());
+                pixels[i] = chunks[i].asIntBuffer();
+            }
+        }
+        catch (IOException | OutOfMemoryError ex)
+        {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Vytvoří prázdný raster, pásy readBand budou INT_ARGB (nebo INT_RGB bez alfy)
+     * @param width šířka
+     * @param height výška
+     * @param hasAlpha zda se má zachovat kanál alfa
+     * @param storage direct nebo mapped
+     * @return OffHeapRaster
+     * @throws IOException při chybě dočasného souboru
+     */
+    public static OffHeapRaster allocate(int width, int height, boolean hasAlpha, PixelStorage storage) throws IOException
+    {
+        return allocate(width, height, new BufferedImage(1, 1, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB), storage);
+    }
+
+    /**
+     * Vytvoří prázdný raster, pásy readBand budou mít stejný formát pixelů (ColorModel a SampleModel) jako daný obrázek
+     * @param width šířka
+     * @param height výška
+     * @param format obrázek (např. první dekódovaný pás), podle kterého se určí formát pásů
+     * @param storage direct nebo mapped
+     * @return OffHeapRaster
+     * @throws IOException při chybě dočasného souboru
+     */
+    public static OffHeapRaster allocate(int width, int height, BufferedImage format, PixelStorage storage) throws IOException
+    {
+        if (storage == PixelStorage.heap)
+        {
+            throw new IllegalArgumentException("Off-heap raster needs direct or mapped storage");
+        }
+        return new OffHeapRaster(width, height, format.getColorModel(), format.getSampleModel(), storage);
+    }
+
+    private static FileChannel openTempFile() throws IOException
+    {
+        Path file = Files.createTempFile("analyzator", ".raw");
+        return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public boolean hasAlpha()
+    {
+        return hasAlpha;
+    }
+
+    public PixelStorage getStorage()
+    {
+        return storage;
+    }
+
+    /**
+     * Vrací počet pixelů
+     * @return long
+     */
+    public long getPixelCount()
+    {
+        return (long) width * height;
+    }
+
+    /**
+     * Vrací počet bajtů, které raster zabírá
+     * @return long
+     */
+    public long getBytes()
+    {
+        return 4 * getPixelCount();
+    }
+
+    private IntBuffer chunkOf(int y)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Raster was freed");
+        }
+        return pixels[y / rowsPerChunk];
+    }
+
+    /**
+     * Vrací pixel ARGB na daném indexu (řádek * šířka + sloupec)
+     * @param index index pixelu
+     * @return int
+     */
+    public synchronized int get(long index)
+    {
+        int y = (int) (index / width);
+        return chunkOf(y).get((y % rowsPerChunk) * width + (int) (index % width));
+    }
+
+    /**
+     * Zapíše pixel ARGB na daný index (řádek * šířka + sloupec)
+     * @param index index pixelu
+     * @param argb pixel
+     */
+    public synchronized void set(long index, int argb)
+    {
+        int y = (int) (index / width);
+        chunkOf(y).put((y % rowsPerChunk) * width + (int) (index % width), argb);
+    }
+
+    /**
+     * Načte řádek pixelů ve formátu ARGB
+     * @param y index řádku
+     * @param argb cílové pole o délce alespoň šířky
+     */
+    public synchronized void getRow(int y, int[] argb)
+    {
+        chunkOf(y).get((y % rowsPerChunk) * width, argb, 0, width);
+    }
+
+    /**
+     * Zapíše řádek pixelů ve formátu ARGB, bez alfy se pixel uloží jako neprůhledný. Pole volajícího se nemění
+     * @param y index řádku
+     * @param argb pole pixelů o délce alespoň šířky
+     */
+    public synchronized void setRow(int y, int[] argb)
+    {
+        IntBuffer chunk = chunkOf(y);
+        int offset = (y % rowsPerChunk) * width;
+        if (hasAlpha)
+        {
+            chunk.put(offset, argb, 0, width);
+            return;
+        }
+        for (int x = 0; x < width; x++)
+        {
+            chunk.put(offset + x, argb[x] | 0xFF000000);
+        }
+    }
+
+    /**
+     * Přičte barvy všech pixelů do histogramu
+     * @param histogram cílový histogram
+     */
+    public synchronized void accumulateHistogram(ColorHistogram histogram)
+    {
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            getRow(y, row);
+            histogram.addAll(row, 0, width);
+        }
+    }
+
+    /**
+     * Zkopíruje řádky y až y + rows - 1 do nového obrázku ve formátu zdrojového obrázku, nad kterým můžou běžet
+     * všechny filtry včetně rozmazání
+     * @param y první řádek
+     * @param rows počet řádků
+     * @return BufferedImage
+     */
+    public synchronized BufferedImage readBand(int y, int rows)
+    {
+        WritableRaster raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, rows), null);
+        BufferedImage band = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+        PixelAccess target = PixelAccess.of(band);
+        int[] row = new int[width];
+        for (int i = 0; i < rows; i++)
+        {
+            getRow(y + i, row);
+            target.setRow(i, row);
+        }
+        return band;
+    }
+
+    /**
+     * Zapíše řádky obrázku do rasteru od řádku y
+     * @param y první cílový řádek
+     * @param image obrázek stejné šířky
+     */
+    public synchronized void writeBand(int y, BufferedImage image)
+    {
+        PixelAccess source = PixelAccess.of(image);
+        int[] row = new int[width];
+        for (int i = 0; i < image.getHeight(); i++)
+        {
+            source.getRow(i, row);
+            setRow(y + i, row);
+        }
+    }
+
+    /**
+     * Uvolní paměť rasteru, u namapovaného souboru ho odmapuje a smaže
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < chunks.length; i++)
+        {
+            if (chunks[i] != null && INVOKE_CLEANER != null)
+            {
+                try
+                {
+                    INVOKE_CLEANER.invoke(UNSAFE, chunks[i]);
+                }
+                catch (ReflectiveOperationException ex)
+                {
+                    // paměť pak uvolní až GC
+                }
+            }
+            chunks[i] = null;
+            pixels[i] = null;
+        }
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                // soubor se smaže při ukončení JVM
+            }
+        }
+    }
+
+    /**
+     * Vrací, zda byl raster uvolněn
+     * @return boolean
+     */
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+}
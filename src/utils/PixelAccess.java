@@ -0,0 +1,374 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Přímý přístup k pixelům obrázku přes pole DataBufferu pro běžné typy (INT_RGB/ARGB, 3BYTE_BGR, 4BYTE_ABGR, BYTE_GRAY),
+ * bez volání getRGB/setRGB a převodu přes ColorModel na každý pixel. Ostatní typy jdou přes getRGB/setRGB po celých řádcích.
+ * Pixely se předávají jako int ve formátu ARGB.
+ * @author Adam Petříček
+ */
+public abstract class PixelAccess {
+    protected final int width;
+    protected final int height;
+
+    /**
+     * Bodová operace nad jedním pixelem ve formátu ARGB
+     */
+    @FunctionalInterface
+    public interface PixelOperation
+    {
+        int apply(int argb);
+    }
+
+    protected PixelAccess(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Vrací přístup k pixelům podle typu obrázku
+     * @param image obrázek
+     * @return PixelAccess
+     */
+    public static PixelAccess of(BufferedImage image)
+    {
+        Raster raster = image.getRaster();
+        boolean untranslated = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        if (untranslated)
+        {
+            switch (image.getType())
+            {
+                case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                    return new IntPacked(image);
+                }
+                case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                    return new ByteInterleaved(image);
+                }
+                case BufferedImage.TYPE_BYTE_GRAY -> {
+                    return new ByteGray(image);
+                }
+                default -> {
+                }
+            }
+        }
+        return new Generic(image);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Načte řádek pixelů ve formátu ARGB
+     * @param y index řádku
+     * @param argb cílové pole o délce alespoň šířky obrázku
+     */
+    public abstract void getRow(int y, int[] argb);
+
+    /**
+     * Zapíše řádek pixelů ve formátu ARGB
+     * @param y index řádku
+     * @param argb zdrojové pole o délce alespoň šířky obrázku
+     */
+    public abstract void setRow(int y, int[] argb);
+
+    /**
+     * Provede bodovou operaci na každém pixelu obrázku na místě, velký obrázek po pásech řádků souběžně (viz RowBands)
+     * @param operation operace
+     */
+    public void apply(PixelOperation operation)
+    {
+        if (!isConcurrentWritable())
+        {
+            applyRows(operation, 0, height);
+            return;
+        }
+        RowBands.run(width, height, (from, to) -> applyRows(operation, from, to));
+    }
+
+    /**
+     * Vrací, zda se do různých řádků smí zapisovat z více vláken najednou. Neplatí pro zápis přes setRGB,
+     * který jde přes ColorModel obrázku (např. vyhledávání v paletě)
+     * @return boolean
+     */
+    boolean isConcurrentWritable()
+    {
+        return true;
+    }
+
+    /**
+     * Provede bodovou operaci na řádcích from až to - 1
+     * @param operation operace
+     * @param from první řádek
+     * @param to řádek za posledním
+     */
+    protected void applyRows(PixelOperation operation, int from, int to)
+    {
+        int[] row = new int[width];
+        for (int y = from; y < to; y++)
+        {
+            getRow(y, row);
+            for (int x = 0; x < width; x++)
+            {
+                row[x] = operation.apply(row[x]);
+            }
+            setRow(y, row);
+        }
+    }
+
+    /**
+     * INT_RGB a INT_ARGB, pixel je přímo prvek pole
+     */
+    private static final class IntPacked extends PixelAccess
+    {
+        private final int[] data;
+        private final int offset;
+        private final int stride;
+        private final boolean alpha;
+
+        IntPacked(BufferedImage image)
+        {
+            super(image.getWidth(), image.getHeight());
+            DataBufferInt buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+            this.data = buffer.getData();
+            this.offset = buffer.getOffset();
+            this.stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+            this.alpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+        }
+
+        @Override
+        public void getRow(int y, int[] argb)
+        {
+            int start = offset + y * stride;
+            if (alpha)
+            {
+                System.arraycopy(data, start, argb, 0, width);
+                return;
+            }
+            for (int x = 0; x < width; x++)
+            {
+                argb[x] = data[start + x] | 0xFF000000;
+            }
+        }
+
+        @Override
+        public void setRow(int y, int[] argb)
+        {
+            System.arraycopy(argb, 0, data, offset + y * stride, width);
+        }
+
+        @Override
+        protected void applyRows(PixelOperation operation, int from, int to)
+        {
+            int opaque = alpha ? 0 : 0xFF000000;
+            for (int y = from; y < to; y++)
+            {
+                int start = offset + y * stride;
+                for (int i = start; i < start + width; i++)
+                {
+                    data[i] = operation.apply(data[i] | opaque);
+                }
+            }
+        }
+    }
+
+    /**
+     * 3BYTE_BGR a 4BYTE_ABGR, složky pixelu leží za sebou podle posunů pásem v ComponentSampleModelu
+     */
+    private static final class ByteInterleaved extends PixelAccess
+    {
+        private final byte[] data;
+        private final int stride;
+        private final int pixelStride;
+        private final int red;
+        private final int green;
+        private final int blue;
+        private final int alpha;
+
+        ByteInterleaved(BufferedImage image)
+        {
+            super(image.getWidth(), image.getHeight());
+            DataBufferByte buffer = (DataBufferByte) image.getRaster().getDataBuffer();
+            ComponentSampleModel model = (ComponentSampleModel) image.getSampleModel();
+            int[] bandOffsets = model.getBandOffsets();
+            this.data = buffer.getData();
+            this.stride = model.getScanlineStride();
+            this.pixelStride = model.getPixelStride();
+            this.red = buffer.getOffset() + bandOffsets[0];
+            this.green = buffer.getOffset() + bandOffsets[1];
+            this.blue = buffer.getOffset() + bandOffsets[2];
+            this.alpha = bandOffsets.length > 3 ? buffer.getOffset() + bandOffsets[3] : -1;
+        }
+
+        private int read(int i)
+        {
+            int a = alpha < 0 ? 0xFF : data[alpha + i] & 0xFF;
+            return a << 24 | (data[red + i] & 0xFF) << 16 | (data[green + i] & 0xFF) << 8 | (data[blue + i] & 0xFF);
+        }
+
+        private void write(int i, int argb)
+        {
+            if (alpha >= 0)
+            {
+                data[alpha + i] = (byte) (argb >>> 24);
+            }
+            data[red + i] = (byte) (argb >>> 16);
+            data[green + i] = (byte) (argb >>> 8);
+            data[blue + i] = (byte) argb;
+        }
+
+        @Override
+        public void getRow(int y, int[] argb)
+        {
+            for (int x = 0, i = y * stride; x < width; x++, i += pixelStride)
+            {
+                argb[x] = read(i);
+            }
+        }
+
+        @Override
+        public void setRow(int y, int[] argb)
+        {
+            for (int x = 0, i = y * stride; x < width; x++, i += pixelStride)
+            {
+                write(i, argb[x]);
+            }
+        }
+
+        @Override
+        protected void applyRows(PixelOperation operation, int from, int to)
+        {
+            for (int y = from; y < to; y++)
+            {
+                for (int x = 0, i = y * stride; x < width; x++, i += pixelStride)
+                {
+                    write(i, operation.apply(read(i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * BYTE_GRAY, jeden bajt na pixel. Hodnoty se převádí stejně jako getRGB/setRGB přes ColorModel obrázku (šedá
+     * v lineárním světle), převody jsou předpočítané do tabulek: čtení pro všech 256 hodnot, zápis pro šedé barvy,
+     * ostatní barvy se při zápisu převádí přes ColorModel
+     */
+    private static final class ByteGray extends PixelAccess
+    {
+        private final byte[] data;
+        private final int offset;
+        private final int stride;
+        private final ColorModel colorModel;
+        private final int[] toArgb = new int[256];
+        private final byte[] fromGrey = new byte[256];
+
+        ByteGray(BufferedImage image)
+        {
+            super(image.getWidth(), image.getHeight());
+            DataBufferByte buffer = (DataBufferByte) image.getRaster().getDataBuffer();
+            this.data = buffer.getData();
+            this.offset = buffer.getOffset();
+            this.stride = ((ComponentSampleModel) image.getSampleModel()).getScanlineStride();
+            this.colorModel = image.getColorModel();
+            for (int v = 0; v < 256; v++)
+            {
+                toArgb[v] = colorModel.getRGB(new byte[] {(byte) v});
+                fromGrey[v] = ((byte[]) colorModel.getDataElements(0xFF000000 | v << 16 | v << 8 | v, null))[0];
+            }
+        }
+
+        private int read(byte value)
+        {
+            return toArgb[value & 0xFF];
+        }
+
+        private byte write(int argb)
+        {
+            int red = (argb >>> 16) & 0xFF;
+            if (red == ((argb >>> 8) & 0xFF) && red == (argb & 0xFF))
+            {
+                return fromGrey[red];
+            }
+            return ((byte[]) colorModel.getDataElements(argb, null))[0];
+        }
+
+        @Override
+        public void getRow(int y, int[] argb)
+        {
+            int start = offset + y * stride;
+            for (int x = 0; x < width; x++)
+            {
+                argb[x] = read(data[start + x]);
+            }
+        }
+
+        @Override
+        public void setRow(int y, int[] argb)
+        {
+            int start = offset + y * stride;
+            for (int x = 0; x < width; x++)
+            {
+                data[start + x] = write(argb[x]);
+            }
+        }
+
+        @Override
+        protected void applyRows(PixelOperation operation, int from, int to)
+        {
+            for (int y = from; y < to; y++)
+            {
+                int start = offset + y * stride;
+                for (int i = start; i < start + width; i++)
+                {
+                    data[i] = write(operation.apply(read(data[i])));
+                }
+            }
+        }
+    }
+
+    /**
+     * Ostatní typy obrázků, přístup přes getRGB/setRGB po celých řádcích
+     */
+    private static final class Generic extends PixelAccess
+    {
+        private final BufferedImage image;
+
+        Generic(BufferedImage image)
+        {
+            super(image.getWidth(), image.getHeight());
+            this.image = image;
+        }
+
+        @Override
+        public void getRow(int y, int[] argb)
+        {
+            image.getRGB(0, y, width, 1, argb, 0, width);
+        }
+
+        @Override
+        public void setRow(int y, int[] argb)
+        {
+            image.setRGB(0, y, width, 1, argb, 0, width);
+        }
+
+        @Override
+        boolean isConcurrentWritable()
+        {
+            return false;
+        }
+    }
+}
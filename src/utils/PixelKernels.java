@@ -0,0 +1,173 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Bodové filtry (inverze, černobílý obrázek) počítané přímo nad poli pixelů přes PixelAccess, bez alokací na pixel.
+ * Pokud je k dispozici modul jdk.incubator.vector (spuštění s --add-modules jdk.incubator.vector) a přeložená složka
+ * src-vector, použijí se pro běžné typy obrázků vektorové (SIMD) varianty z VectorKernels. Přepínač je vlastnost analyzator.simd nebo metoda setVectorized().
+ * @author Adam Petříček
+ */
+public final class PixelKernels {
+    private PixelKernels() {}
+
+    static final int DIVIDE_BY_3_MULTIPLIER = 0xAAAB;
+    static final int DIVIDE_BY_3_SHIFT = 17;
+
+    private static final VectorKernels VECTOR = loadVectorKernels();
+    private static final boolean VECTOR_AVAILABLE = VECTOR != null;
+    private static volatile boolean vectorized = VECTOR_AVAILABLE && Boolean.parseBoolean(System.getProperty("analyzator.simd", "true"));
+
+    /**
+     * Inverze barev, každá složka R, G, B se odečte od 255, výsledek je neprůhledný
+     */
+    public static final PixelAccess.PixelOperation INVERT = argb -> 0xFF000000 | (~argb & 0x00FFFFFF);
+
+    /**
+     * Černobílý obrázek, každá složka je průměrem složek R, G, B (dělení třemi násobením a posunem, pro 0 - 765 přesné),
+     * výsledek je neprůhledný
+     */
+    public static final PixelAccess.PixelOperation GREY = argb -> {
+        int sum = ((argb >>> 16) & 0xFF) + ((argb >>> 8) & 0xFF) + (argb & 0xFF);
+        int grey = (sum * DIVIDE_BY_3_MULTIPLIER) >>> DIVIDE_BY_3_SHIFT;
+        return 0xFF000000 | grey << 16 | grey << 8 | grey;
+    };
+
+    /**
+     * Načte vektorové varianty (třída SimdKernels ze složky src-vector). Bez modulu jdk.incubator.vector nebo bez
+     * přeložené třídy vrací null a filtry běží skalárně
+     */
+    private static VectorKernels loadVectorKernels()
+    {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+        {
+            return null;
+        }
+        try
+        {
+            return (VectorKernels) Class.forName("utils.SimdKernels").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Vrací, zda je k dispozici Vector API (modul i přeložená třída SimdKernels)
+     * @return boolean
+     */
+    public static boolean isVectorAvailable()
+    {
+        return VECTOR_AVAILABLE;
+    }
+
+    /**
+     * Vrací, zda se používají vektorové varianty filtrů
+     * @return boolean
+     */
+    public static boolean isVectorized()
+    {
+        return vectorized;
+    }
+
+    /**
+     * Zapne nebo vypne vektorové varianty filtrů, bez Vector API zůstávají vypnuté
+     * @param enabled true pro vektorové varianty
+     */
+    public static void setVectorized(boolean enabled)
+    {
+        vectorized = enabled && VECTOR_AVAILABLE;
+    }
+
+    /**
+     * Invertuje barvy obrázku na místě
+     * @param image obrázek
+     */
+    public static void invert(BufferedImage image)
+    {
+        if (!vectorized || !applyVectorized(image, true))
+        {
+            PixelAccess.of(image).apply(INVERT);
+        }
+    }
+
+    /**
+     * Převede obrázek na černobílý na místě
+     * @param image obrázek
+     */
+    public static void grey(BufferedImage image)
+    {
+        if (!vectorized || !applyVectorized(image, false))
+        {
+            PixelAccess.of(image).apply(GREY);
+        }
+    }
+
+    /**
+     * Provede filtr vektorově po řádcích, pokud to typ obrázku dovoluje
+     * @param image obrázek
+     * @param invert true pro inverzi, false pro černobílý obrázek
+     * @return false, pokud typ obrázku vektorově zpracovat neumíme
+     */
+    private static boolean applyVectorized(BufferedImage image, boolean invert)
+    {
+        Raster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+        {
+            return false;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        switch (image.getType())
+        {
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+                int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                int[] data = buffer.getData();
+                RowBands.run(width, height, (first, last) -> {
+                    for (int y = first; y < last; y++)
+                    {
+                        int from = buffer.getOffset() + y * stride;
+                        if (invert)
+                            VECTOR.invert(data, from, from + width);
+                        else
+                            VECTOR.grey(data, from, from + width);
+                    }
+                });
+                return true;
+            }
+            // BYTE_GRAY sem nepatří, šedá je v lineárním světle a inverze bajtu neodpovídá inverzi barvy
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                if (!invert)
+                {
+                    return false;
+                }
+                DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                if (model.getPixelStride() != model.getNumBands())
+                {
+                    return false;
+                }
+                int rowBytes = width * model.getPixelStride();
+                byte[] data = buffer.getData();
+                RowBands.run(width, height, (first, last) -> {
+                    for (int y = first; y < last; y++)
+                    {
+                        int from = buffer.getOffset() + y * model.getScanlineStride();
+                        VECTOR.invert(data, from, from + rowBytes);
+                    }
+                });
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+}
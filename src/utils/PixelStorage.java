@@ -0,0 +1,10 @@
+package utils;
+
+/**
+ * Kde se drží dekódované pixely obrázků: na haldě (BufferedImage v PixelCache), v paměti mimo haldu,
+ * nebo v dočasném souboru namapovaném do paměti
+ * @author Adam Petříček
+ */
+public enum PixelStorage {
+    heap, direct, mapped
+}
@@ -0,0 +1,284 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Řetězec bodových operací nad složkami R, G, B (jas, kontrast, gama, úrovně, práh, posterizace, inverze, černobílý obrázek).
+ * Celý řetězec se přeloží do jedné tabulky 256 hodnot pro každý kanál a použije se v jednom průchodu bez alokací.
+ * Černobílý krok míchá kanály, proto se přeloží na tabulku pro součet složek (0 - 765). Všechny ostatní kroky působí
+ * na každý kanál stejně, po prvním černobílém kroku tedy zůstanou kanály shodné a další černobílé kroky nic nemění.
+ * Výsledek je stejně jako u původních filtrů neprůhledný. Instance je neměnná.
+ * @author Adam Petříček
+ */
+public final class PointOperation {
+
+    /**
+     * Krok nad jednou složkou 0 - 255, výsledek se ořízne do stejného rozsahu
+     */
+    @FunctionalInterface
+    private interface Step
+    {
+        double apply(int value);
+    }
+
+    private static final Step INVERT_STEP = value -> 255 - value;
+    private static final Step GREY_STEP = value -> value;
+
+    private final List<Step> steps;
+    private final List<String> names;
+    private PixelAccess.PixelOperation compiled;
+
+    private PointOperation(List<Step> steps, List<String> names)
+    {
+        this.steps = Collections.unmodifiableList(steps);
+        this.names = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Vrací operaci, která pixely nemění
+     * @return PointOperation
+     */
+    public static PointOperation identity()
+    {
+        return new PointOperation(new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * Předvolba inverze barev
+     * @return PointOperation
+     */
+    public static PointOperation invertPreset()
+    {
+        return identity().invert();
+    }
+
+    /**
+     * Předvolba černobílého obrázku
+     * @return PointOperation
+     */
+    public static PointOperation greyPreset()
+    {
+        return identity().grey();
+    }
+
+    /**
+     * Přidá inverzi, složka se odečte od 255
+     * @return PointOperation
+     */
+    public PointOperation invert()
+    {
+        return then(INVERT_STEP, "inverted");
+    }
+
+    /**
+     * Přidá převod na černobílý obrázek, všechny složky budou průměrem R, G, B
+     * @return PointOperation
+     */
+    public PointOperation grey()
+    {
+        return then(GREY_STEP, "grey");
+    }
+
+    /**
+     * Přidá změnu jasu
+     * @param delta posun jasu -255 až 255
+     * @return PointOperation
+     */
+    public PointOperation brightness(int delta)
+    {
+        requireRange(delta, -255, 255, "Brightness");
+        return then(value -> value + delta, "brightness");
+    }
+
+    /**
+     * Přidá změnu kontrastu kolem středu 128
+     * @param factor násobek kontrastu (1 = beze změny)
+     * @return PointOperation
+     */
+    public PointOperation contrast(double factor)
+    {
+        if (!(factor >= 0) || Double.isInfinite(factor))
+        {
+            throw new IllegalArgumentException("Contrast must be a non-negative number");
+        }
+        return then(value -> (value - 128) * factor + 128, "contrast");
+    }
+
+    /**
+     * Přidá gama korekci, hodnoty větší než 1 obrázek zesvětlí
+     * @param gamma gama
+     * @return PointOperation
+     */
+    public PointOperation gamma(double gamma)
+    {
+        if (!(gamma > 0) || Double.isInfinite(gamma))
+        {
+            throw new IllegalArgumentException("Gamma must be a positive number");
+        }
+        return then(value -> 255 * Math.pow(value / 255.0, 1 / gamma), "gamma");
+    }
+
+    /**
+     * Přidá úrovně, rozsah black - white se roztáhne na 0 - 255
+     * @param black vstupní černá
+     * @param white vstupní bílá
+     * @return PointOperation
+     */
+    public PointOperation levels(int black, int white)
+    {
+        requireRange(black, 0, 254, "Black level");
+        requireRange(white, black + 1, 255, "White level");
+        return then(value -> (value - black) * 255.0 / (white - black), "levels");
+    }
+
+    /**
+     * Přidá práh, hodnoty od prahu výš budou 255, ostatní 0
+     * @param threshold práh 0 - 255
+     * @return PointOperation
+     */
+    public PointOperation threshold(int threshold)
+    {
+        requireRange(threshold, 0, 255, "Threshold");
+        return then(value -> value >= threshold ? 255 : 0, "threshold");
+    }
+
+    /**
+     * Přidá posterizaci na daný počet úrovní v každém kanálu
+     * @param levels počet úrovní 2 - 256
+     * @return PointOperation
+     */
+    public PointOperation posterize(int levels)
+    {
+        requireRange(levels, 2, 256, "Posterize levels");
+        return then(value -> Math.round(value * (levels - 1) / 255.0) * 255.0 / (levels - 1), "posterized");
+    }
+
+    /**
+     * Připojí za tuto operaci jinou operaci
+     * @param other operace, která proběhne potom
+     * @return PointOperation
+     */
+    public PointOperation then(PointOperation other)
+    {
+        List<Step> joinedSteps = new ArrayList<>(steps);
+        joinedSteps.addAll(other.steps);
+        List<String> joinedNames = new ArrayList<>(names);
+        joinedNames.addAll(other.names);
+        return new PointOperation(joinedSteps, joinedNames);
+    }
+
+    private PointOperation then(Step step, String name)
+    {
+        List<Step> extendedSteps = new ArrayList<>(steps);
+        extendedSteps.add(step);
+        List<String> extendedNames = new ArrayList<>(names);
+        extendedNames.add(name);
+        return new PointOperation(extendedSteps, extendedNames);
+    }
+
+    private static void requireRange(int value, int min, int max, String what)
+    {
+        if (value < min || value > max)
+        {
+            throw new IllegalArgumentException(String.format("%s must be between %d and %d", what, min, max));
+        }
+    }
+
+    /**
+     * Vrací, zda operace nic nedělá
+     * @return boolean
+     */
+    public boolean isIdentity()
+    {
+        return steps.isEmpty();
+    }
+
+    /**
+     * Vrací příponu jména výstupního souboru složenou z jednotlivých kroků
+     * @return String
+     */
+    public String getSuffix()
+    {
+        return String.join("_", names);
+    }
+
+    /**
+     * Přeloží řetězec do tabulek a vrátí ho jako jednu bodovou operaci nad pixelem ARGB
+     * @return PixelAccess.PixelOperation
+     */
+    public synchronized PixelAccess.PixelOperation compile()
+    {
+        if (compiled == null)
+        {
+            compiled = buildOperation();
+        }
+        return compiled;
+    }
+
+    private PixelAccess.PixelOperation buildOperation()
+    {
+        int greyAt = steps.indexOf(GREY_STEP);
+        int[] before = table(steps.subList(0, greyAt < 0 ? steps.size() : greyAt));
+        // tabulka na kanál, všechny kroky jsou zatím pro kanály stejné
+        int[] red = before;
+        int[] green = before;
+        int[] blue = before;
+        if (greyAt < 0)
+        {
+            return argb -> 0xFF000000 | red[(argb >>> 16) & 0xFF] << 16 | green[(argb >>> 8) & 0xFF] << 8 | blue[argb & 0xFF];
+        }
+
+        List<Step> after = new ArrayList<>(steps.subList(greyAt + 1, steps.size()));
+        after.removeIf(step -> step == GREY_STEP);
+        int[] afterTable = table(after);
+        int[] mix = new int[3 * 255 + 1];
+        for (int sum = 0; sum < mix.length; sum++)
+        {
+            int grey = afterTable[(sum * PixelKernels.DIVIDE_BY_3_MULTIPLIER) >>> PixelKernels.DIVIDE_BY_3_SHIFT];
+            mix[sum] = 0xFF000000 | grey << 16 | grey << 8 | grey;
+        }
+        return argb -> mix[red[(argb >>> 16) & 0xFF] + green[(argb >>> 8) & 0xFF] + blue[argb & 0xFF]];
+    }
+
+    /**
+     * Složí kroky do jedné tabulky 256 hodnot, po každém kroku se hodnota zaokrouhlí a ořízne
+     */
+    private static int[] table(List<Step> chain)
+    {
+        int[] table = new int[256];
+        for (int value = 0; value < 256; value++)
+        {
+            int result = value;
+            for (Step step : chain)
+            {
+                result = (int) Math.max(0, Math.min(255, Math.round(step.apply(result))));
+            }
+            table[value] = result;
+        }
+        return table;
+    }
+
+    /**
+     * Použije operaci na obrázek na místě. Samotná inverze a samotný černobílý krok jdou přes PixelKernels
+     * (případně vektorově), výsledek je shodný s tabulkou
+     * @param image obrázek
+     */
+    public void apply(BufferedImage image)
+    {
+        if (steps.size() == 1 && steps.get(0) == INVERT_STEP)
+        {
+            PixelKernels.invert(image);
+        }
+        else if (steps.size() == 1 && steps.get(0) == GREY_STEP)
+        {
+            PixelKernels.grey(image);
+        }
+        else if (!steps.isEmpty())
+        {
+            PixelAccess.of(image).apply(compile());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rozdělení průchodu přes řádky obrázku na pásy. Malý obrázek se projde najednou v aktuálním vlákně, velký se dělí
+ * na poloviny až po pásy kolem TILE_PIXELS pixelů, které běží jako úlohy ForkJoinPoolu (viz GaussianBlur.run).
+ * Uvnitř poolu kolekce si tak pásy jednoho velkého obrázku můžou vzít vlákna, která už svou práci dokončila.
+ * @author Adam Petříček
+ */
+final class RowBands {
+    /**
+     * Obrázky s nejvýš tolika pixely se nedělí, stejně velký je přibližně i jeden pás
+     */
+    static final long TILE_PIXELS = 1 << 20;
+
+    private RowBands() {}
+
+    /**
+     * Práce nad rozsahem řádků from až to - 1, pásy se zpracovávají souběžně, musí tedy zapisovat jen do svých řádků
+     */
+    @FunctionalInterface
+    interface Band
+    {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Vrací, zda se obrázek daných rozměrů dělí na pásy
+     * @param width šířka
+     * @param height výška
+     * @return boolean
+     */
+    static boolean isSplit(int width, int height)
+    {
+        return (long) width * height > TILE_PIXELS && height > 1;
+    }
+
+    /**
+     * Vrací počet vláken, mezi která se pásy rozdělí: paralelismus aktuálního ForkJoinPoolu, mimo něj poolu rozmazání
+     * @return int
+     */
+    static int getParallelism()
+    {
+        ForkJoinPool current = ForkJoinTask.getPool();
+        return current != null ? current.getParallelism() : GaussianBlur.getParallelism();
+    }
+
+    /**
+     * Projde všechny řádky obrázku, velký obrázek po pásech souběžně
+     * @param width šířka
+     * @param height výška
+     * @param band práce nad pásem řádků
+     */
+    static void run(int width, int height, Band band)
+    {
+        if (!isSplit(width, height))
+        {
+            band.apply(0, height);
+            return;
+        }
+        GaussianBlur.run(new BandTask(width, band, 0, height));
+    }
+
+    private static final class BandTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int width;
+        private final Band band;
+        private final int from;
+        private final int to;
+
+        BandTask(int width, Band band, int from, int to)
+        {
+            this.width = width;
+            this.band = band;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (isSplit(width, to - from))
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BandTask(width, band, from, middle), new BandTask(width, band, middle, to));
+                return;
+            }
+            band.apply(from, to);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package utils;
+
+/**
+ * Vektorové (SIMD) varianty bodových filtrů. Implementace SimdKernels používá modul jdk.incubator.vector, a proto
+ * se překládá zvlášť ze složky src-vector, PixelKernels ji načítá reflexí (viz PixelKernels.isVectorAvailable).
+ * Výsledky musí být bitově shodné se skalární cestou.
+ * @author Adam Petříček
+ */
+interface VectorKernels {
+    /**
+     * Inverze pixelů ARGB v rozsahu pole, výsledek je neprůhledný
+     * @param data pole pixelů
+     * @param from první index
+     * @param to index za posledním pixelem
+     */
+    void invert(int[] data, int from, int to);
+
+    /**
+     * Průměr složek R, G, B pixelů ARGB v rozsahu pole, výsledek je neprůhledný
+     * @param data pole pixelů
+     * @param from první index
+     * @param to index za posledním pixelem
+     */
+    void grey(int[] data, int from, int to);
+
+    /**
+     * Inverze všech bajtů v rozsahu pole (složky obrázků 3BYTE_BGR)
+     * @param data pole složek
+     * @param from první index
+     * @param to index za posledním bajtem
+     */
+    void invert(byte[] data, int from, int to);
+}